@@ -0,0 +1,34 @@
+package com.x5.template;
+
+/**
+ * Bindings holds the data for one render of a CompiledTemplate.
+ *
+ * <P>
+ * A Bindings object is a Chunk without a template, so it takes values the
+ * same way (set, setToBean, addData, putAll...).  Obtain one from
+ * Theme.makeBindings() so it picks up the theme's locale, filters and
+ * error handling, then re-use it across requests by calling reset()
+ * instead of building a new Chunk for every render.
+ *
+ * <P>
+ * Bindings are not meant to be shared between threads while values are
+ * being set; use one per thread, or one per request.
+ */
+public class Bindings extends Chunk
+{
+    public Bindings()
+    {
+        super();
+    }
+
+    /**
+     * Clears all values so this object can be used for the next render.
+     * Theme settings (locale, filters, error handling) are kept.
+     * @return this Bindings, for convenience.
+     */
+    public Bindings reset()
+    {
+        resetTags();
+        return this;
+    }
+}
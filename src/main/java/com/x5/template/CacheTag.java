@@ -0,0 +1,374 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {% cache key="menu_$category" ttl="5m" %}...{% endcache %}
+ *
+ * Renders its body once and then serves the output from a shared store
+ * until the ttl runs out.  $tag references in the key are resolved at
+ * render time, so each distinct key value is cached separately.  Without
+ * a key, there is just the one entry per cache block.
+ *
+ * Entries belong to the text of the block (and the template it came
+ * from) rather than to the parsed block, so they survive the template
+ * being reloaded as long as the block itself is unchanged.
+ *
+ * When several threads need the same missing entry, one renders it and
+ * the others wait for its output.  When an entry expires, the thread
+ * that notices re-renders it while everyone else is handed the previous
+ * output.
+ *
+ * The store is bounded by the total length of cached output, set with
+ * the system property chunk.fragmentcache (in chars).
+ */
+public class CacheTag extends BlockTag
+{
+    private static final long DEFAULT_TTL = 60 * 1000;
+    private static final FragmentStore STORE = new FragmentStore(getMaxWeight());
+
+    private String params;
+    private Snippet body;
+    private long ttl = DEFAULT_TTL;
+
+    // origin, params and body text, see getBlockId
+    private volatile String blockId;
+
+    // key text split into literal text and tag references
+    private String[] keyLiterals;
+    private SnippetTag[] keyTags;
+
+    public CacheTag(String params, Snippet body)
+    {
+        parseParams(params);
+        this.params = params;
+        this.body = body;
+    }
+
+    public CacheTag()
+    {
+    }
+
+    public String getBlockStartMarker()
+    {
+        return "cache";
+    }
+
+    public String getBlockEndMarker()
+    {
+        return "/cache";
+    }
+
+    public boolean doSmartTrimAroundBlock()
+    {
+        return true;
+    }
+
+    private static long getMaxWeight()
+    {
+        String setting = System.getProperty("chunk.fragmentcache");
+        if (setting != null) {
+            try {
+                return Long.parseLong(setting.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return 1024 * 1024;
+    }
+
+    private static final Pattern paramPattern = Pattern.compile(" ([a-zA-Z0-9_-]+)=(\"([^\"]*)\"|'([^\']*)')");
+
+    private void parseParams(String params)
+    {
+        Map<String,String> options = new HashMap<String,String>();
+        Matcher m = paramPattern.matcher(params);
+        while (m.find()) {
+            String paramValue = m.group(3) != null ? m.group(3) : m.group(4);
+            options.put(m.group(1), paramValue);
+        }
+
+        String ttlOpt = options.get("ttl");
+        if (ttlOpt != null) {
+            this.ttl = parseDuration(ttlOpt);
+        }
+
+        String keyOpt = options.get("key");
+        if (keyOpt != null) {
+            parseKey(keyOpt);
+        }
+    }
+
+    /**
+     * @return millis for "500ms" "30s" "5m" "1h" (plain numbers are seconds)
+     */
+    static long parseDuration(String duration)
+    {
+        String d = duration.trim().toLowerCase();
+        long unit = 1000;
+        if (d.endsWith("ms")) {
+            unit = 1;
+            d = d.substring(0, d.length()-2);
+        } else if (d.endsWith("s")) {
+            d = d.substring(0, d.length()-1);
+        } else if (d.endsWith("m")) {
+            unit = 60 * 1000;
+            d = d.substring(0, d.length()-1);
+        } else if (d.endsWith("h")) {
+            unit = 60 * 60 * 1000;
+            d = d.substring(0, d.length()-1);
+        }
+        try {
+            return Long.parseLong(d.trim()) * unit;
+        } catch (NumberFormatException e) {
+            return DEFAULT_TTL;
+        }
+    }
+
+    private static final Pattern KEY_TAG = Pattern.compile("[$~]([A-Za-z0-9_.]+)");
+
+    private void parseKey(String key)
+    {
+        List<String> literals = new ArrayList<String>();
+        List<SnippetTag> tags = new ArrayList<SnippetTag>();
+
+        Matcher m = KEY_TAG.matcher(key);
+        int cursor = 0;
+        while (m.find()) {
+            literals.add(key.substring(cursor, m.start()));
+            tags.add(SnippetTag.parseTag(m.group(1)));
+            cursor = m.end();
+        }
+        literals.add(key.substring(cursor));
+
+        this.keyLiterals = literals.toArray(new String[literals.size()]);
+        this.keyTags = tags.toArray(new SnippetTag[tags.size()]);
+    }
+
+    private String resolveKey(Chunk context, int depth)
+    {
+        if (keyLiterals == null) return "";
+        if (keyTags.length == 0) return keyLiterals[0];
+
+        StringBuilder key = new StringBuilder();
+        for (int i=0; i<keyTags.length; i++) {
+            key.append(keyLiterals[i]);
+            Object value = context.resolveTagValue(keyTags[i], depth);
+            // keep missing values distinct from empty ones
+            key.append(value == null ? "\u0000" : value.toString());
+        }
+        key.append(keyLiterals[keyTags.length]);
+        return key.toString();
+    }
+
+    public void renderBlock(Writer out, final Chunk context, String origin, final int depth)
+    throws IOException
+    {
+        if (body == null) return;
+
+        if (RenderFrame.isSkippingSharedCaches()) {
+            // eg a warm-up render: its output must not be served later
+            body.render(out, context, depth);
+            return;
+        }
+
+        FragmentKey key = new FragmentKey(getBlockId(), resolveKey(context, depth));
+        String output = STORE.get(key, ttl, new Callable<String>() {
+            public String call() throws IOException {
+                RenderBuffer buffer = RenderBuffer.acquire(body.getOutputSizeHint());
+                try {
+                    body.render(buffer, context, depth);
+                    String rendered = buffer.toString();
+                    body.recordOutputSize(rendered.length());
+                    return rendered;
+                } finally {
+                    RenderBuffer.release(buffer);
+                }
+            }
+        });
+        out.write(output);
+    }
+
+    /**
+     * @return what identifies this block from one parse of its template
+     * to the next.
+     */
+    private String getBlockId()
+    {
+        String id = blockId;
+        if (id == null) {
+            // same result on every thread, so a race here is harmless
+            id = body.getOrigin() + '\u0000' + params + '\u0000' + body.toSimpleString();
+            blockId = id;
+        }
+        return id;
+    }
+
+    /**
+     * Drop every cached fragment.
+     */
+    public static void clearCache()
+    {
+        STORE.clear();
+    }
+
+    private static final class FragmentKey
+    {
+        final String blockId;
+        final String key;
+
+        FragmentKey(String blockId, String key)
+        {
+            this.blockId = blockId;
+            this.key = key;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof FragmentKey)) return false;
+            FragmentKey other = (FragmentKey)o;
+            return key.equals(other.key) && blockId.equals(other.blockId);
+        }
+
+        public int hashCode()
+        {
+            return blockId.hashCode() * 31 + key.hashCode();
+        }
+    }
+
+    private static final class Fragment
+    {
+        final FutureTask<String> task;
+        // output of the expired fragment this one replaces, until ready
+        volatile String stale;
+        long expires = Long.MAX_VALUE;
+        int weight = 0;
+
+        Fragment(FutureTask<String> task, String stale)
+        {
+            this.task = task;
+            this.stale = stale;
+        }
+
+        /**
+         * @return the rendered output, or null if it failed.
+         */
+        String output()
+        {
+            try {
+                return task.get();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class FragmentStore
+    {
+        // access-ordered, so iteration starts at the least recently used
+        private final LinkedHashMap<FragmentKey,Fragment> fragments
+            = new LinkedHashMap<FragmentKey,Fragment>(64, 0.75f, true);
+        private final long maxWeight;
+        private long weight = 0;
+
+        FragmentStore(long maxWeight)
+        {
+            this.maxWeight = maxWeight;
+        }
+
+        String get(FragmentKey key, long ttl, Callable<String> render)
+        throws IOException
+        {
+            Fragment fragment;
+            boolean isMine = false;
+            synchronized (this) {
+                fragment = fragments.get(key);
+                if (fragment == null || (fragment.task.isDone() && System.currentTimeMillis() >= fragment.expires)) {
+                    String stale = (fragment == null) ? null : fragment.output();
+                    if (fragment != null) weight -= fragment.weight;
+                    fragment = new Fragment(new FutureTask<String>(render), stale);
+                    fragments.put(key, fragment);
+                    isMine = true;
+                }
+            }
+
+            if (isMine) {
+                fragment.task.run();
+                try {
+                    String output = fragment.task.get();
+                    stored(key, fragment, output, ttl);
+                    return output;
+                } catch (ExecutionException e) {
+                    synchronized (this) {
+                        if (fragments.get(key) == fragment) fragments.remove(key);
+                    }
+                    throw unwrap(e);
+                } catch (InterruptedException e) {
+                    // can't happen, the task already ran
+                    Thread.currentThread().interrupt();
+                    throw new java.io.InterruptedIOException();
+                }
+            }
+
+            String stale = fragment.stale;
+            if (stale != null && !fragment.task.isDone()) {
+                // being refreshed, make do with the previous output
+                return stale;
+            }
+            try {
+                return fragment.task.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new java.io.InterruptedIOException();
+            }
+        }
+
+        private synchronized void stored(FragmentKey key, Fragment fragment, String output, long ttl)
+        {
+            fragment.expires = System.currentTimeMillis() + ttl;
+            fragment.stale = null;
+            if (fragments.get(key) != fragment) return;
+            fragment.weight = Math.max(1, output.length());
+            weight += fragment.weight;
+
+            Iterator<Fragment> lru = fragments.values().iterator();
+            while (weight > maxWeight && lru.hasNext()) {
+                Fragment eldest = lru.next();
+                // pending renders have nothing to give back yet
+                if (eldest.weight == 0) continue;
+                weight -= eldest.weight;
+                lru.remove();
+            }
+        }
+
+        synchronized void clear()
+        {
+            fragments.clear();
+            weight = 0;
+        }
+
+        private static IOException unwrap(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) return (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            return ioe;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package com.x5.template;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -13,7 +13,12 @@ import java.util.Locale;
 import java.util.Set;
 import java.util.Vector;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import com.x5.template.filters.Calc;
 import com.x5.util.DataCapsule;
@@ -256,25 +261,29 @@ public class Chunk implements Map<String,Object>
     public static final String TRUE = "TRUE";
 
     protected Snippet templateRoot = null;
-    private String templateOrigin = null;
     private String[] firstTags = new String[HASH_THRESH];
     private Object[] firstValues = new Object[HASH_THRESH];
     private int tagCount = 0;
-    protected Vector<Snippet> template = null;
+    protected volatile Vector<Snippet> template = null;
     private Hashtable<String,Object> tags = null;
+    private volatile Map<String,Snippet> parsedValues = null;
     protected String tagStart = TemplateSet.DEFAULT_TAG_START;
     protected String tagEnd = TemplateSet.DEFAULT_TAG_END;
 
-    private Vector<Vector<Chunk>> contextStack = null;
-
     private ContentSource macroLibrary = null;
     private ChunkFactory chunkFactory = null;
 
     private String localeCode = null;
-    private ChunkLocale locale = null;
+    private volatile ChunkLocale locale = null;
 
     // print errors to output?
     private boolean renderErrs = true;
+    private Executor executor = null;
+    private boolean renderInParallel = false;
+    private boolean memoizeIncludes = false;
+    private boolean skipSharedCaches = false;
+    // any setDeferred Callables to prefetch?
+    private boolean hasDeferredCallables = false;
     private PrintStream errLog = null;
 
     // package visibility
@@ -449,6 +458,9 @@ public class Chunk implements Map<String,Object>
      * the value passed is null.  If both the tagValue and the fallback
      * are null, the rule created will resolve all instances of the tag
      * to the string "NULL"
+     *
+     * To compute a value only if and when the template needs it, see
+     * setDeferred.
      * @param tagName tag to replace
      * @param tagValue replacement value -- no-op unless this is of type String or Chunk.
      * @param ifNull fallback replacement value in case tagValue is null
@@ -621,28 +633,38 @@ public class Chunk implements Map<String,Object>
      */
     public String toString()
     {
-        StringWriter out = new StringWriter();
-        try {
-            render(out);
-            out.flush();
-            return out.toString();
-        } catch (IOException e) {
-            return e.getLocalizedMessage();
-        }
+        return toString(null);
     }
 
     public String toString(Chunk context)
     {
-        StringWriter out = new StringWriter();
+        // output size is tracked per template, so the buffer is usually
+        // big enough from the start
+        Snippet sizeKey = getSizeHintKey();
+        RenderBuffer out = RenderBuffer.acquire(sizeKey == null ? 0 : sizeKey.getOutputSizeHint());
         try {
-            render(out, context);
-            out.flush();
+            if (context == null) {
+                render(out);
+            } else {
+                render(out, context);
+            }
+            if (sizeKey != null) sizeKey.recordOutputSize(out.length());
             return out.toString();
         } catch (IOException e) {
             return e.getLocalizedMessage();
+        } finally {
+            RenderBuffer.release(out);
         }
     }
 
+    private Snippet getSizeHintKey()
+    {
+        if (templateRoot != null) return templateRoot;
+        Vector<Snippet> template = this.template;
+        if (template == null || template.size() == 0) return null;
+        return template.elementAt(0);
+    }
+
     public void render(PrintStream out)
     throws IOException
     {
@@ -657,26 +679,61 @@ public class Chunk implements Map<String,Object>
         explodeForParentToPrinter(out, null);
     }
 
-    public void render(Writer out, Chunk context)
+    /**
+     * Render as UTF-8 bytes.
+     */
+    public void render(OutputStream out)
     throws IOException
     {
-        // sometimes orphaned chunks need to be reunited with their ancestry
-        Vector<Chunk> parentContext = context.prepareParentContext();
-        explodeForParentToPrinter(out, parentContext);
+        render(out, "UTF-8");
     }
 
-    private void pushContextStack(Vector<Chunk> parentContext)
+    /**
+     * Render straight to bytes.  Static template text is encoded once per
+     * charset and re-used on every render, only tag values are encoded as
+     * they go out.  The stream is flushed but not closed.
+     */
+    public void render(OutputStream out, String charsetName)
+    throws IOException
     {
-        if (contextStack == null) {
-            contextStack = new Vector<Vector<Chunk>>();
-        }
-        contextStack.insertElementAt(parentContext, 0);
+        EncodingWriter writer = EncodingWriter.forCharset(out, charsetName);
+        render(writer);
+        writer.finish();
+    }
+
+    /**
+     * Render progressively: the Writer is flushed at every {% flush %} in
+     * the template, and also whenever flushThreshold chars have been
+     * written since the last flush (0 means flush points only).  Use this
+     * to get the head of a page to the client while slower sections are
+     * still rendering.
+     */
+    public void stream(Writer out, int flushThreshold)
+    throws IOException
+    {
+        FlushingWriter writer = new FlushingWriter(out, flushThreshold);
+        render(writer);
+        writer.flush();
     }
 
-    private void popContextStack()
+    /**
+     * Same as stream(Writer,int) but straight to bytes, see
+     * render(OutputStream,String).  The threshold is in bytes.
+     */
+    public void stream(OutputStream out, String charsetName, int flushThreshold)
+    throws IOException
+    {
+        EncodingWriter writer = EncodingWriter.forCharset(out, charsetName, flushThreshold);
+        render(writer);
+        writer.finish();
+    }
+
+    public void render(Writer out, Chunk context)
+    throws IOException
     {
-        if (contextStack == null || contextStack.size() == 0) return;
-        contextStack.removeElementAt(0);
+        // sometimes orphaned chunks need to be reunited with their ancestry
+        Vector<Chunk> parentContext = context.prepareParentContext();
+        explodeForParentToPrinter(out, parentContext);
     }
 
     private void explodeForParentToPrinter(Writer out, Vector<Chunk> ancestors)
@@ -684,21 +741,39 @@ public class Chunk implements Map<String,Object>
     {
         if (template == null && templateRoot == null) return;
 
-        if (ancestors != null) {
-            // PUSH ANCESTORS ONTO STACK AND LOCK DOWN
-            synchronized(this) {
-                pushContextStack(ancestors);
-                renderForParentToPrinter(out);
-                popContextStack();
-            }
-        } else {
+        // ancestors live in a thread-confined frame, not in this chunk,
+        // so no locking is needed even when many threads render this chunk.
+        RenderFrame frame = RenderFrame.push(this, ancestors);
+        try {
+            if (executor != null) prefetchDeferred();
             renderForParentToPrinter(out);
+        } finally {
+            RenderFrame.pop(frame);
+        }
+    }
+
+    /**
+     * Renders a template that belongs to someone else (eg a CompiledTemplate)
+     * using the tag values of this chunk.  This chunk's own template is not
+     * rendered.
+     */
+    // package visibility
+    void renderTemplate(Writer out, Snippet snippet)
+    throws IOException
+    {
+        RenderFrame frame = RenderFrame.push(this, null);
+        try {
+            if (executor != null) prefetchDeferred(snippet);
+            explodeToPrinter(out, snippet, 1);
+        } finally {
+            RenderFrame.pop(frame);
         }
     }
 
     private void renderForParentToPrinter(Writer out)
     throws IOException
     {
+        Vector<Snippet> template = this.template;
         if (template == null) {
             explodeToPrinter(out, templateRoot, 1);
         } else {
@@ -706,7 +781,9 @@ public class Chunk implements Map<String,Object>
             // some block-open tags might not be grouped with the matching block-closed tag.
             // Merge templates together into a single Snippet if possible.
             if (template.size() > 1) {
-                template = mergeTemplateParts();
+                template = mergeTemplateParts(template);
+                // racing renders produce equivalent merges, last one wins
+                this.template = template;
             }
             for (int i=0; i < template.size(); i++) {
                 Snippet s = template.elementAt(i);
@@ -715,7 +792,7 @@ public class Chunk implements Map<String,Object>
         }
     }
 
-    private Vector<Snippet> mergeTemplateParts()
+    private static Vector<Snippet> mergeTemplateParts(Vector<Snippet> template)
     {
         Snippet merged;
         try {
@@ -782,14 +859,13 @@ public class Chunk implements Map<String,Object>
     @SuppressWarnings("unchecked")
     private Vector<Chunk> prepareParentContext()
     {
-        if (contextStack == null) {
+        Vector<Chunk> ancestors = getCurrentParentContext();
+        if (ancestors == null) {
             Vector<Chunk> parentContext = new Vector<Chunk>();
             parentContext.add(this);
             return parentContext;
         } else {
-            // current context is first element on stack
-            Vector<Chunk> parentContext = contextStack.firstElement();
-            parentContext = (Vector<Chunk>)parentContext.clone();
+            Vector<Chunk> parentContext = (Vector<Chunk>)ancestors.clone();
             parentContext.insertElementAt(this,0);
             return parentContext;
         }
@@ -797,12 +873,9 @@ public class Chunk implements Map<String,Object>
 
     private Vector<Chunk> getCurrentParentContext()
     {
-        if (contextStack == null || contextStack.size() == 0) {
-            return null;
-        } else {
-            // current context is first element on stack
-            return contextStack.firstElement();
-        }
+        // ancestors of the innermost render of this chunk on this thread
+        RenderFrame frame = RenderFrame.find(this);
+        return (frame == null) ? null : frame.ancestors;
     }
 
     /**
@@ -815,40 +888,279 @@ public class Chunk implements Map<String,Object>
      */
     public Object getTagValue(String tagName)
     {
-        if (tags != null) {
-            Object x = tags.get(tagName);
-            if (x instanceof String) {
-                // first request for this value.  lazy-convert to Snippet.
-                // subsequent fetches will benefit from pre-scan.
-                Snippet s = Snippet.getSnippet((String)x);
-                tags.put(tagName, s);
-                return s.isSimple() ? s.toString() : s;
-            } else if (x instanceof Snippet) {
-                Snippet s = (Snippet)x;
-                return s.isSimple() ? s.toString() : s;
-            } else {
-                return x;
+        Object x = getRawTagValue(tagName);
+
+        if (x instanceof DeferredValue) {
+            x = resolveDeferred(tagName, (DeferredValue)x);
+        }
+
+        if (x instanceof String) {
+            return parseValue((String)x);
+        } else if (x instanceof Snippet) {
+            Snippet s = (Snippet)x;
+            return s.isSimple() ? s.toString() : s;
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * The value that a plain {$tagName} finds in this chunk or its
+     * ancestors, as it was set: no defaults, no filters, and deferred
+     * values are not resolved.  See IncludeMemo.
+     */
+    // package visibility
+    Object lookupRawValue(String tagName)
+    {
+        if (hasValue(tagName)) return getRawTagValue(tagName);
+
+        Vector<Chunk> parentContext = getCurrentParentContext();
+        if (parentContext != null) {
+            for (Chunk ancestor : parentContext) {
+                Object x = ancestor.getRawTagValue(tagName);
+                if (x != null) return x;
             }
+        }
+        return null;
+    }
+
+    private Object getRawTagValue(String tagName)
+    {
+        Object x = null;
+        if (tags != null) {
+            x = tags.get(tagName);
         } else {
             for (int i=0; i<tagCount; i++) {
                 if (firstTags[i].equals(tagName)) {
-                    Object x = firstValues[i];
-                    if (x instanceof String) {
-                        // first request for this value. lazy-convert to Snippet.
-                        // subsequent fetches will benefit from pre-scan.
-                        Snippet s = Snippet.getSnippet((String)x);
-                        firstValues[i] = s;
-                        return s.isSimple() ? s.toString() : s;
-                    } else if (x instanceof Snippet) {
-                        Snippet s = (Snippet)x;
-                        return s.isSimple() ? s.toString() : s;
-                    } else {
-                        return x;
-                    }
+                    x = firstValues[i];
+                    break;
                 }
             }
         }
-        return null;
+        return x;
+    }
+
+    /**
+     * Bind a lazy value to a tag: the Callable is only called if the
+     * template actually uses the tag, and at most once per render no
+     * matter how many times it is referenced, from loop rows, child chunks
+     * etc.  It is called on the executor if one was set (see setExecutor),
+     * otherwise by the rendering thread when first needed.  Outside of a
+     * render (eg getTagValue from java code) it is called every time.
+     */
+    public void setDeferred(String tagName, Callable<?> value)
+    {
+        if (value != null) hasDeferredCallables = true;
+        set(tagName, (value == null) ? null : new DeferredValue(value));
+    }
+
+    /**
+     * Bind a value that is still being computed.  Rendering only blocks on
+     * the Future at the point the tag is output.
+     */
+    public void setDeferred(String tagName, Future<?> value)
+    {
+        set(tagName, (value == null) ? null : new DeferredValue(value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object resolveDeferred(String tagName, DeferredValue deferred)
+    {
+        Future<?> future;
+        if (deferred.future != null) {
+            future = deferred.future;
+        } else {
+            FutureTask<Object> task = startDeferred((Callable<Object>)deferred.callable, null);
+            // still queued? don't wait for a free worker, just run it here.
+            task.run();
+            future = task;
+        }
+
+        Object value;
+        try {
+            value = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return handleError("[interrupted while waiting for tag value: "+tagName+"]");
+        } catch (ExecutionException e) {
+            return handleError("[error fetching tag value: "+tagName+" - "+e.getCause()+"]");
+        }
+        return coercePrimitivesToStringAndBoxAliens(value);
+    }
+
+    private static FutureTask<Object> startDeferred(final Callable<Object> callable, Executor executor)
+    {
+        // memoize the boxed value, so eg a bean is only wrapped once
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                return coercePrimitivesToStringAndBoxAliens(callable.call());
+            }
+        });
+        RenderFrame root = RenderFrame.root();
+        if (root != null) {
+            FutureTask<Object> started = root.putDeferredIfAbsent(callable, task);
+            // another section of this render got there first
+            if (started != task) return started;
+        }
+        if (executor != null) executor.execute(task);
+        return task;
+    }
+
+    private void prefetchDeferred()
+    {
+        Vector<Snippet> template = this.template;
+        if (template == null) {
+            prefetchDeferred(templateRoot);
+        } else {
+            for (int i=0; i < template.size(); i++) {
+                prefetchDeferred(template.elementAt(i));
+            }
+        }
+    }
+
+    /**
+     * Start every deferred Callable that the template refers to, in
+     * template order, so they can all run concurrently while rendering
+     * proceeds.
+     */
+    @SuppressWarnings("unchecked")
+    private void prefetchDeferred(Snippet snippet)
+    {
+        if (snippet == null || !hasDeferredCallables) return;
+        // names are worked out once per template, not on every render
+        for (String name : snippet.getTagNames()) {
+            Object x = getRawTagValue(name);
+            if (x instanceof DeferredValue && ((DeferredValue)x).callable != null) {
+                startDeferred((Callable<Object>)((DeferredValue)x).callable, executor);
+            }
+        }
+    }
+
+    /**
+     * Deferred Callables referenced by this chunk's template are started
+     * on this executor as soon as rendering begins, instead of being called
+     * one after another as each tag is output.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Opt in to rendering sibling includes and block tags (loops, ifs,
+     * etc.) of this chunk's template concurrently on the executor (see
+     * setExecutor).  Each is rendered into its own buffer, and the buffers
+     * are written out in document order.
+     *
+     * Rendering never modifies a chunk, so siblings are independent of one
+     * another; just make sure any objects bound to tags are safe to read
+     * from several threads.  {% flush %} has no effect inside a section
+     * that renders in parallel.
+     */
+    public void setRenderInParallel(boolean renderInParallel)
+    {
+        this.renderInParallel = renderInParallel;
+    }
+
+    /**
+     * Opt in to memoizing the output of includes (and of any other tag
+     * whose value is a template).  Each time an include is rendered, the
+     * tag values it reads are recorded, and later renders of the same
+     * include just write out the stored output as long as all of those
+     * tags still resolve to the same values.
+     *
+     * Only includes that read plain values qualify -- eg one that loops
+     * over a list is rendered every time as usual.
+     */
+    public void setMemoizeIncludes(boolean memoizeIncludes)
+    {
+        this.memoizeIncludes = memoizeIncludes;
+    }
+
+    boolean isMemoizingIncludes()
+    {
+        return memoizeIncludes;
+    }
+
+    /**
+     * For renders whose output is thrown away (see Theme.warmUp): neither
+     * look up nor store {% cache %} fragments or memoized includes while
+     * this chunk, or anything nested in it, renders.
+     */
+    // package visibility
+    void setSkipSharedCaches(boolean skipSharedCaches)
+    {
+        this.skipSharedCaches = skipSharedCaches;
+    }
+
+    boolean isSkippingSharedCaches()
+    {
+        return skipSharedCaches;
+    }
+
+    /**
+     * @return the executor to render sibling sections on, or null if
+     * this chunk renders sequentially.
+     */
+    Executor getParallelExecutor()
+    {
+        return renderInParallel ? executor : null;
+    }
+
+    /**
+     * Render on the executor (see setExecutor), or right away on this thread
+     * if there is none.
+     *
+     * @return a Future that completes when rendering is done.
+     */
+    public Future<Void> renderAsync(final Writer out)
+    {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException {
+                render(out);
+                return null;
+            }
+        });
+        Executor executor = this.executor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private static final int MAX_PARSED_VALUES = 64;
+
+    /**
+     * Values are stored as set, and parsed on the way out.  Plain text
+     * needs no parsing at all.  Values that might contain tags are parsed
+     * once and kept on the side, so that rendering never writes to the
+     * tag table (and a chunk can be rendered by several threads at once).
+     */
+    private Object parseValue(String x)
+    {
+        if (x.indexOf('{') < 0 && x.indexOf("_[") < 0) return x;
+
+        Map<String,Snippet> parsed = parsedValues;
+        Snippet s = (parsed == null) ? null : parsed.get(x);
+        if (s == null) {
+            s = Snippet.getSnippet(x);
+            if (parsed == null) {
+                parsed = new ConcurrentHashMap<String,Snippet>();
+                parsedValues = parsed;
+            }
+            if (parsed.size() >= MAX_PARSED_VALUES) {
+                parsed.clear();
+            }
+            parsed.put(x, s);
+        }
+        return s.isSimple() ? s.toString() : s;
     }
 
     private Hashtable<String,ContentSource> altSources = null;
@@ -867,20 +1179,14 @@ public class Chunk implements Map<String,Object>
         altSources.put(protocol,src);
     }
 
-    private Object altFetch(String tagName, int depth)
-    {
-        return altFetch(tagName, depth, false);
-    }
-
-    private static final java.util.regex.Pattern INCLUDEIF_PATTERN =
-        java.util.regex.Pattern.compile("^\\.include(If|\\.\\()");
-
-    private Object altFetch(String tagName, int depth, boolean ignoreParentContext)
+    private Object altFetch(ContentDirective directive, int depth, boolean ignoreParentContext)
     {
+        String tagName = directive.tagName;
         String tagValue = null;
 
-        // the .calc(...) fn
-        if (tagName.startsWith(".calc(")) {
+        switch (directive.kind) {
+        case ContentDirective.CALC:
+            // the .calc(...) fn
             String eval = null;
             try {
                 eval = Calc.evalCalc(tagName,this);
@@ -888,21 +1194,17 @@ public class Chunk implements Map<String,Object>
                 String errMsg = "[ERROR: jeplite jar missing from classpath! .calc command requires jeplite library]";
                 eval = handleError(errMsg);
             }
-
             return eval;
-        }
 
-        if (tagName.startsWith(".version")) {
+        case ContentDirective.VERSION:
             return VERSION;
-        }
 
-        // the .loop(...) fn
-        if (tagName.startsWith(".loop")) {
-            return LoopTag.expandLoop(tagName, this, this.templateOrigin, depth);
-        }
+        case ContentDirective.LOOP:
+            // the .loop(...) fn
+            return LoopTag.expandLoop(tagName, this, getTemplateOrigin(), depth);
 
-        // the .tagStack fn
-        if (tagName.startsWith(".tagStack")) {
+        case ContentDirective.TAG_STACK:
+            // the .tagStack fn
             String format = "text";
             if (tagName.contains("html")) {
                 format = "html";
@@ -915,42 +1217,26 @@ public class Chunk implements Map<String,Object>
             return null;
         }
 
-        // the includeIfPattern (defined above)
-        // matches ".includeIf" and ".include.(" <-- ie from +(cond) expansion
-        Matcher m = INCLUDEIF_PATTERN.matcher(tagName);
-        if (m.find()) {
+        switch (directive.kind) {
+        case ContentDirective.INCLUDE_IF:
             // this is either lame or very sneaky
-            String translation = Filter.translateIncludeIf(tagName,tagStart,tagEnd,this);
+            return Filter.translateIncludeIf(tagName,tagStart,tagEnd,this);
 
-            return translation;
-        }
+        case ContentDirective.END_TAG:
+            // extra end tag, pass through
+            return null;
 
-        // parse content source "protocol"
-        int delimPos = tagName.indexOf(".",1);
-        int spacePos = tagName.indexOf(" ",1); // {.include abc#xyz} is ok too
-        if (delimPos < 0 && spacePos < 0) {
-            if (tagName.startsWith("./")) {
-                // extra end tag, pass through
-                return null;
-                //return "[CHUNK_ERR: extra end tag, no matching tag found for "+tagName.substring(1)+"]";
-            } else {
-                String errMsg = "[CHUNK_ERR: malformed content reference: '"+tagName+"' -- missing argument]";
-                return handleError(errMsg);
-            }
+        case ContentDirective.MALFORMED:
+            String errMsg = "[CHUNK_ERR: malformed content reference: '"+tagName+"' -- missing argument]";
+            return handleError(errMsg);
         }
-        if (spacePos > 0 && (delimPos < 0 || spacePos < delimPos)) delimPos = spacePos;
-        String srcName = tagName.substring(1,delimPos);
-        String itemName = tagName.substring(delimPos+1);
 
         // for this to work, caller must have already provided an object which
         // implements com.x5.template.ContentSource
         //  -- then templates can delegate to this source using the syntax
         // {.protocol.itemName}   eg {.wiki.About_Us}  or {.include.#some_template}
 
-        // strip away filters, defaults
-        String cleanItemName = itemName;
-        cleanItemName = cleanItemName.replaceAll("[\\|:].*$", "");
-
+        String srcName = directive.protocol;
         ContentSource fetcher = null;
         if (altSources != null) {
             fetcher = altSources.get(srcName);
@@ -965,11 +1251,11 @@ public class Chunk implements Map<String,Object>
                 // include's are special, handle via macroLibrary TemplateSet
                 // slight optimization, return Snippet instead of String
                 Theme theme = (Theme)fetcher;
-                String templateRef = BlockTag.qualifyTemplateRef(templateOrigin, cleanItemName);
-                Snippet s = theme.getSnippet(templateRef);
+                String templateRef = directive.getTemplateRef(getTemplateOrigin());
+                Snippet s = theme.getLinkedSnippet(directive, templateRef);
                 if (s != null) return s;
             } else {
-                tagValue = fetcher.fetch(cleanItemName);
+                tagValue = fetcher.fetch(directive.itemName);
             }
         }
 
@@ -978,8 +1264,7 @@ public class Chunk implements Map<String,Object>
             Vector<Chunk> parentContext = getCurrentParentContext();
             if (parentContext != null) {
                 for (Chunk ancestor : parentContext) {
-                    // lazy... should repeat if/else above to avoid re-parsing the tag
-                    Object x = ancestor.altFetch(tagName, depth, true);
+                    Object x = ancestor.altFetch(directive, depth, true);
                     if (x != null) return x;
                 }
             }
@@ -1021,12 +1306,26 @@ public class Chunk implements Map<String,Object>
     {
         if (origin == null) {
             return _resolveTagValue(tag, depth, false);
-        } else {
-            this.templateOrigin = origin;
-            Object value = _resolveTagValue(tag, depth, false);
-            this.templateOrigin = null;
+        }
 
-            return value;
+        RenderFrame frame = RenderFrame.find(this);
+        if (frame == null) {
+            // resolving outside of a render of this chunk
+            frame = RenderFrame.push(this, null);
+            try {
+                frame.origin = origin;
+                return _resolveTagValue(tag, depth, false);
+            } finally {
+                RenderFrame.pop(frame);
+            }
+        }
+
+        String outerOrigin = frame.origin;
+        frame.origin = origin;
+        try {
+            return _resolveTagValue(tag, depth, false);
+        } finally {
+            frame.origin = outerOrigin;
         }
     }
 
@@ -1035,8 +1334,16 @@ public class Chunk implements Map<String,Object>
         return _resolveTagValue(tag, depth, false);
     }
 
-    @SuppressWarnings("rawtypes")
     protected Object _resolveTagValue(SnippetTag tag, int depth, boolean ignoreParentContext)
+    {
+        Object tagValue = lookupTagValue(tag, depth, ignoreParentContext);
+        // memoized includes depend on whatever they read
+        IncludeMemo.recordRead(this, tag, ignoreParentContext);
+        return tagValue;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Object lookupTagValue(SnippetTag tag, int depth, boolean ignoreParentContext)
     {
         String[] path = tag.getPath();
         int segment = 0;
@@ -1049,7 +1356,10 @@ public class Chunk implements Map<String,Object>
         Object tagValue = null;
 
         if (segmentName.charAt(0) == '.') {
-            tagValue = altFetch(segmentName, depth);
+            // parsed along with the tag, unless the name is dynamic
+            ContentDirective directive = tag.hasBackticks()
+                ? ContentDirective.parse(segmentName) : tag.getDirective();
+            tagValue = altFetch(directive, depth, false);
         } else if (hasValue(segmentName)) {
             tagValue = getTagValue(segmentName);
         } else {
@@ -1160,6 +1470,9 @@ public class Chunk implements Map<String,Object>
                 || o instanceof Object[]) {
             // can all be handled natively
             return o;
+        } else if (o instanceof DeferredValue) {
+            // see setDeferred, resolved when the tag is rendered
+            return o;
         }
 
         // unrecognized object. wrap inside map.
@@ -1514,6 +1827,7 @@ public class Chunk implements Map<String,Object>
     public void setLocale(String localeCode)
     {
         this.localeCode = localeCode;
+        this.locale = null;
     }
 
     public void setLocale(Locale javaLocale)
@@ -1538,9 +1852,12 @@ public class Chunk implements Map<String,Object>
 
     public ChunkLocale getLocale()
     {
+        String localeCode = this.localeCode;
         if (localeCode == null) return null;
+        ChunkLocale locale = this.locale;
         if (locale == null) {
             locale = ChunkLocale.getInstance(localeCode, this);
+            this.locale = locale;
         }
         return locale;
     }
@@ -1571,7 +1888,8 @@ public class Chunk implements Map<String,Object>
 
     public String getTemplateOrigin()
     {
-        return this.templateOrigin;
+        RenderFrame frame = RenderFrame.find(this);
+        return (frame == null) ? null : frame.origin;
     }
 
 }
@@ -3,7 +3,9 @@ package com.x5.template;
 import java.util.HashMap;
 import java.util.IllegalFormatException;
 import java.util.Locale;
+import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -20,7 +22,7 @@ public class ChunkLocale
     private String localeCode;
     private HashMap<String,String> translations;
 
-    private static HashMap<String,ChunkLocale> locales = new HashMap<String,ChunkLocale>();
+    private static Map<String,ChunkLocale> locales = new ConcurrentHashMap<String,ChunkLocale>();
 
     public static ChunkLocale getInstance(String localeCode, Chunk context)
     {
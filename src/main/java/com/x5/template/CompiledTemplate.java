@@ -0,0 +1,131 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * CompiledTemplate is the template half of a Chunk, without any data.
+ *
+ * <P>
+ * Obtain one from Theme.getCompiledTemplate(...) and keep it around.  It is
+ * immutable, so a single instance may be rendered by any number of threads
+ * at once, each with its own Bindings:
+ *
+ * <PRE>
+ *   CompiledTemplate page = theme.getCompiledTemplate("page#main");
+ *   ...
+ *   Bindings data = theme.makeBindings();
+ *   data.set("title", "Hello");
+ *   page.render(out, data);
+ * </PRE>
+ *
+ * The template is looked up in the theme once and then re-used, until
+ * the theme reloads a template or its cache interval is up, same as a
+ * linked include (see Theme.getLinkedSnippet).
+ */
+public class CompiledTemplate
+{
+    private final String templateName;
+    private final String extension;
+    private final Theme theme;
+
+    private volatile ContentDirective.Link link;
+
+    /**
+     * @param extension the template file extension, or null for the
+     * theme's default.
+     */
+    CompiledTemplate(String templateName, String extension, Theme theme)
+    {
+        this.templateName = templateName;
+        this.extension = extension;
+        this.theme = theme;
+        this.link = resolve();
+    }
+
+    private ContentDirective.Link resolve()
+    {
+        int version = theme.getVersion();
+        long now = System.currentTimeMillis();
+        Snippet snippet = (extension == null)
+            ? theme.getSnippet(templateName) : theme.getSnippet(templateName, extension);
+        // a theme that can't say when it changes is asked every time
+        long expires = (version == -1) ? now : now + theme.getLinkDuration();
+        return new ContentDirective.Link(theme, templateName, snippet, version, expires);
+    }
+
+    public String getTemplateName()
+    {
+        return templateName;
+    }
+
+    public Theme getTheme()
+    {
+        return theme;
+    }
+
+    Snippet getSnippet()
+    {
+        ContentDirective.Link current = link;
+        if (current.version != theme.getVersion() || System.currentTimeMillis() >= current.expires) {
+            current = resolve();
+            link = current;
+        }
+        return current.snippet;
+    }
+
+    /**
+     * Render this template using the values in bindings.  If bindings
+     * is null, the template renders with no values at all.
+     */
+    public void render(Writer out, Bindings bindings)
+    throws IOException
+    {
+        render(out, bindings, getSnippet());
+    }
+
+    private void render(Writer out, Bindings bindings, Snippet snippet)
+    throws IOException
+    {
+        if (snippet == null) return;
+        if (bindings == null) bindings = theme.makeBindings();
+        bindings.renderTemplate(out, snippet);
+    }
+
+    /**
+     * Render straight to bytes in the given charset, see
+     * Chunk.render(OutputStream,String).
+     */
+    public void render(OutputStream out, String charsetName, Bindings bindings)
+    throws IOException
+    {
+        EncodingWriter writer = EncodingWriter.forCharset(out, charsetName);
+        render(writer, bindings);
+        writer.finish();
+    }
+
+    public String render(Bindings bindings)
+    {
+        Snippet snippet = getSnippet();
+        RenderBuffer out = RenderBuffer.acquire(snippet == null ? 0 : snippet.getOutputSizeHint());
+        try {
+            render(out, bindings, snippet);
+            if (snippet != null) snippet.recordOutputSize(out.length());
+            return out.toString();
+        } catch (IOException e) {
+            return e.getLocalizedMessage();
+        } finally {
+            RenderBuffer.release(out);
+        }
+    }
+
+    /**
+     * toString() returns the un-interpreted template.
+     */
+    public String toString()
+    {
+        Snippet snippet = getSnippet();
+        return (snippet == null) ? "" : snippet.toString();
+    }
+}
@@ -11,7 +11,7 @@ import com.x5.template.filters.FilterArgs;
 public class CondLexer
 {
     String conditional;
-    CondTree parsed;
+    volatile CondTree parsed;
 
     public CondLexer(String conditional)
     {
@@ -20,13 +20,15 @@ public class CondLexer
 
     public CondTree parse() throws InvalidExpressionException
     {
-        if (parsed != null) {
-            return parsed;
+        CondTree tree = parsed;
+        if (tree != null) {
+            return tree;
         }
 
-        parsed = CondTree.buildBranch(lexLogicTokens());
+        tree = CondTree.buildBranch(lexLogicTokens());
+        parsed = tree;
 
-        return parsed;
+        return tree;
     }
 
     // pick apart high-level logic tokens && || ! () but treat entire
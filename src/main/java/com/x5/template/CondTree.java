@@ -2,6 +2,7 @@ package com.x5.template;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class CondTree
 {
@@ -174,32 +175,81 @@ public class CondTree
     }
 
     public boolean isTrue(Chunk context)
+    {
+        return isTrue(context, null);
+    }
+
+    boolean isTrue(Chunk context, Map<String,Object> resolved)
     {
         if (operator == TEST) {
-            return leftBranch != null ? leftBranch.isTrue(context) : test.isTrue(context);
+            return leftBranch != null ? leftBranch.isTrue(context, resolved) : test.isTrue(context, resolved);
         }
 
         if (operator == NOT) {
-            return leftBranch != null ? !leftBranch.isTrue(context) : !test.isTrue(context);
+            return leftBranch != null ? !leftBranch.isTrue(context, resolved) : !test.isTrue(context, resolved);
         }
 
         if (operator == AND) {
             // only eval right branch if left branch is true.
-            if (!leftBranch.isTrue(context)) {
+            if (!leftBranch.isTrue(context, resolved)) {
                 return false;
             }
 
-            return rightBranch.isTrue(context);
+            return rightBranch.isTrue(context, resolved);
         }
 
         if (operator == OR) {
             // only eval right branch if left branch is false.
-            if (leftBranch.isTrue(context)) {
+            if (leftBranch.isTrue(context, resolved)) {
                 return true;
             }
-            return rightBranch.isTrue(context);
+            return rightBranch.isTrue(context, resolved);
         }
 
         return false;
     }
+
+    /**
+     * @return TRUE or FALSE if this expression comes out the same no
+     * matter what the tags hold, otherwise null.
+     */
+    Boolean getConstantValue()
+    {
+        if (operator == TEST || operator == NOT) {
+            Boolean value = (leftBranch != null) ? leftBranch.getConstantValue() : test.getConstantValue();
+            if (value == null || operator == TEST) return value;
+            return Boolean.valueOf(!value.booleanValue());
+        }
+
+        if (leftBranch == null || rightBranch == null) return null;
+        Boolean left = leftBranch.getConstantValue();
+        Boolean right = rightBranch.getConstantValue();
+
+        // either side decides it: false for AND, true for OR
+        Boolean decisive = Boolean.valueOf(operator == OR);
+        if (decisive.equals(left) || decisive.equals(right)) {
+            return decisive;
+        }
+        if (left != null && right != null) {
+            return left;
+        }
+        return null;
+    }
+
+    /**
+     * @return the test if this expression is a single test (possibly in
+     * parens, but not negated), otherwise null.
+     */
+    Conditional getSingleTest()
+    {
+        if (operator != TEST) return null;
+        return (leftBranch != null) ? leftBranch.getSingleTest() : test;
+    }
+
+    void collectTagKeys(List<String> keys)
+    {
+        if (test != null) test.collectTagKeys(keys);
+        if (leftBranch != null) leftBranch.collectTagKeys(keys);
+        if (rightBranch != null) rightBranch.collectTagKeys(keys);
+    }
 }
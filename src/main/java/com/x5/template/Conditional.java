@@ -1,7 +1,8 @@
 package com.x5.template;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -168,6 +169,15 @@ public class Conditional
     }
 
     public boolean isTrue(Chunk context)
+    {
+        return isTrue(context, null);
+    }
+
+    /**
+     * @param resolved tag values already resolved by neighbouring tests
+     * in the same if/elseIf chain, keyed by tag expression (may be null).
+     */
+    boolean isTrue(Chunk context, Map<String,Object> resolved)
     {
         Object leftSideValue;
 
@@ -176,17 +186,17 @@ public class Conditional
             if (leftSide == null) {
                 return !isNeg;
             }
-            leftSideValue = context.resolveTagValue(leftSide, 1);
+            leftSideValue = resolve(leftSide, context, resolved);
             return (leftSideValue == null) ? isNeg : !isNeg;
         case COMPARE_CONSTANT:
-            leftSideValue = context.resolveTagValue(leftSide, 1);
+            leftSideValue = resolve(leftSide, context, resolved);
             if (leftSideValue == null) {
                 return (compareTo == null) ? !isNeg : isNeg;
             }
             return leftSideValue.toString().equals(compareTo == null ? "" : compareTo) ? !isNeg : isNeg;
         case COMPARE_TAGEXPR:
-            leftSideValue = context.resolveTagValue(leftSide, 1);
-            Object rightSideValue = context.resolveTagValue(rightSide, 1);
+            leftSideValue = resolve(leftSide, context, resolved);
+            Object rightSideValue = resolve(rightSide, context, resolved);
             if (leftSideValue == null && rightSideValue == null) {
                 return !isNeg;
             }
@@ -197,7 +207,7 @@ public class Conditional
             String rightStr = rightSideValue.toString();
             return leftStr.equals(rightStr) ? !isNeg : isNeg;
         case COMPARE_REGEX:
-            leftSideValue = context.resolveTagValue(leftSide, 1);
+            leftSideValue = resolve(leftSide, context, resolved);
             String testStr = leftSideValue == null ? null : leftSideValue.toString();
             return isMatch(testStr, this.compareTo) ? !isNeg : isNeg;
         default:
@@ -205,6 +215,55 @@ public class Conditional
         }
     }
 
+    static Object resolve(SnippetTag tag, Chunk context, Map<String,Object> resolved)
+    {
+        if (resolved == null) {
+            return context.resolveTagValue(tag, 1);
+        }
+        String key = tag.getTag();
+        Object value = resolved.get(key);
+        if (value == null && !resolved.containsKey(key)) {
+            value = context.resolveTagValue(tag, 1);
+            resolved.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return TRUE or FALSE if this test never looks at a tag (eg "true"
+     * or a malformed test), otherwise null.
+     */
+    Boolean getConstantValue()
+    {
+        if (testType == EXISTENCE && leftSide == null) {
+            return Boolean.valueOf(!isNeg);
+        }
+        return null;
+    }
+
+    /**
+     * @return the tag expression if this is a plain $tag == "constant"
+     * test, otherwise null.
+     */
+    SnippetTag getEqualsConstantTag()
+    {
+        if (testType == COMPARE_CONSTANT && !isNeg && compareTo != null) {
+            return leftSide;
+        }
+        return null;
+    }
+
+    String getCompareTo()
+    {
+        return compareTo;
+    }
+
+    void collectTagKeys(List<String> keys)
+    {
+        if (leftSide != null) keys.add(leftSide.getTag());
+        if (rightSide != null) keys.add(rightSide.getTag());
+    }
+
     private boolean isMatch(String text, String regex)
     {
         if (text == null || regex == null) return false;
@@ -216,12 +275,13 @@ public class Conditional
         return m.find();
     }
 
-    private static Map<String,Pattern> compiledRegex = new HashMap<String,Pattern>();
+    private static Map<String,Pattern> compiledRegex = new ConcurrentHashMap<String,Pattern>();
 
     private Pattern compilePattern(String regex)
     {
-        if (compiledRegex.containsKey(regex)) {
-            return compiledRegex.get(regex);
+        Pattern cached = compiledRegex.get(regex);
+        if (cached != null) {
+            return cached;
         }
 
         int cursor = 0;
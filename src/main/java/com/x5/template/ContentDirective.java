@@ -0,0 +1,129 @@
+package com.x5.template;
+
+import java.util.regex.Pattern;
+
+/**
+ * ContentDirective is a {.command} or {.protocol.item} tag, taken apart
+ * once when the tag is parsed so that rendering can dispatch on it
+ * directly (see Chunk.altFetch) instead of re-scanning the tag text.
+ *
+ * Directives are immutable apart from a one-entry cache of the last
+ * qualified template reference and the link to the last include target,
+ * both safe to share across threads.
+ */
+final class ContentDirective
+{
+    static final int CALC       = 0;
+    static final int VERSION    = 1;
+    static final int LOOP       = 2;
+    static final int TAG_STACK  = 3;
+    static final int INCLUDE_IF = 4;
+    static final int END_TAG    = 5;
+    static final int MALFORMED  = 6;
+    static final int FETCH      = 7;
+
+    private static final Pattern INCLUDEIF_PATTERN = Pattern.compile("^\\.include(If|\\.\\()");
+    private static final Pattern FILTERS_AND_DEFAULTS = Pattern.compile("[\\|:].*$");
+
+    final int kind;
+    final String tagName;
+
+    // FETCH only
+    final String protocol;
+    final String itemName;
+
+    // {origin, qualified item ref} from the most recent include
+    private volatile String[] lastQualified;
+
+    // include target, see Theme.getLinkedSnippet
+    volatile Link link;
+
+    private ContentDirective(int kind, String tagName)
+    {
+        this(kind, tagName, null, null);
+    }
+
+    private ContentDirective(int kind, String tagName, String protocol, String itemName)
+    {
+        this.kind = kind;
+        this.tagName = tagName;
+        this.protocol = protocol;
+        this.itemName = itemName;
+    }
+
+    static ContentDirective parse(String tagName)
+    {
+        if (tagName.startsWith(".calc(")) {
+            return new ContentDirective(CALC, tagName);
+        } else if (tagName.startsWith(".version")) {
+            return new ContentDirective(VERSION, tagName);
+        } else if (tagName.startsWith(".loop")) {
+            return new ContentDirective(LOOP, tagName);
+        } else if (tagName.startsWith(".tagStack")) {
+            return new ContentDirective(TAG_STACK, tagName);
+        }
+
+        // matches ".includeIf" and ".include.(" <-- ie from +(cond) expansion
+        if (INCLUDEIF_PATTERN.matcher(tagName).find()) {
+            return new ContentDirective(INCLUDE_IF, tagName);
+        }
+
+        // parse content source "protocol"
+        int delimPos = tagName.indexOf(".",1);
+        int spacePos = tagName.indexOf(" ",1); // {.include abc#xyz} is ok too
+        if (delimPos < 0 && spacePos < 0) {
+            if (tagName.startsWith("./")) {
+                // extra end tag, pass through
+                return new ContentDirective(END_TAG, tagName);
+            } else {
+                return new ContentDirective(MALFORMED, tagName);
+            }
+        }
+        if (spacePos > 0 && (delimPos < 0 || spacePos < delimPos)) delimPos = spacePos;
+        String srcName = tagName.substring(1,delimPos);
+        String itemName = tagName.substring(delimPos+1);
+
+        // strip away filters, defaults
+        itemName = FILTERS_AND_DEFAULTS.matcher(itemName).replaceAll("");
+
+        return new ContentDirective(FETCH, tagName, srcName, itemName);
+    }
+
+    /**
+     * Link is a direct pointer from an include to the Snippet it resolved
+     * to.  It holds until the theme reloads any template, or the theme's
+     * cache interval runs out.
+     */
+    static final class Link
+    {
+        final Theme theme;
+        final String templateRef;
+        final Snippet snippet;
+        final int version;
+        final long expires;
+
+        Link(Theme theme, String templateRef, Snippet snippet, int version, long expires)
+        {
+            this.theme = theme;
+            this.templateRef = templateRef;
+            this.snippet = snippet;
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @return the item name as a template reference, qualified with
+     * origin if it is a #local reference.
+     */
+    String getTemplateRef(String origin)
+    {
+        String[] last = lastQualified;
+        if (last != null && (origin == null ? last[0] == null : origin.equals(last[0]))) {
+            return last[1];
+        }
+        String templateRef = BlockTag.qualifyTemplateRef(origin, itemName);
+        lastQualified = new String[]{origin, templateRef};
+        return templateRef;
+    }
+}
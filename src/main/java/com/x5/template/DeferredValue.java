@@ -0,0 +1,28 @@
+package com.x5.template;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * A tag value bound with Chunk.setDeferred, resolved only when the tag
+ * is rendered.  Objects that merely happen to implement Callable or
+ * Future are left alone by set() and render like any other object.
+ */
+final class DeferredValue
+{
+    // exactly one of these is set
+    final Callable<?> callable;
+    final Future<?> future;
+
+    DeferredValue(Callable<?> callable)
+    {
+        this.callable = callable;
+        this.future = null;
+    }
+
+    DeferredValue(Future<?> future)
+    {
+        this.callable = null;
+        this.future = future;
+    }
+}
@@ -0,0 +1,295 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * EncodingWriter is the Writer behind Chunk.render(OutputStream).
+ *
+ * <P>
+ * Dynamic output is encoded as it arrives, like an OutputStreamWriter.
+ * Static template text is encoded once per charset by the compiled
+ * template (see SnippetProgram) and handed over as bytes via writeEncoded,
+ * so on static-heavy pages most output skips the charset encoder entirely.
+ *
+ * <P>
+ * Not thread-safe; one per render.
+ */
+final class EncodingWriter extends Writer
+{
+    private static final int CHAR_BUFFER_SIZE = 1024;
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private final boolean canSplice;
+    private final int flushThreshold;
+    private int unflushed = 0;
+
+    private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+    private final ByteBuffer bytes;
+
+    EncodingWriter(OutputStream out, Charset charset)
+    {
+        this(out, charset, 0);
+    }
+
+    /**
+     * @param flushThreshold flush the stream whenever this many bytes have
+     * been written since the last flush, or 0 to only flush when asked.
+     */
+    EncodingWriter(OutputStream out, Charset charset, int flushThreshold)
+    {
+        this.out = out;
+        this.flushThreshold = flushThreshold;
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.canSplice = isStateless(charset);
+        int byteBufferSize = (int)Math.ceil(CHAR_BUFFER_SIZE * encoder.maxBytesPerChar()) * 4;
+        this.bytes = ByteBuffer.allocate(byteBufferSize);
+    }
+
+    static EncodingWriter forCharset(OutputStream out, String charsetName)
+    throws UnsupportedEncodingException
+    {
+        return forCharset(out, charsetName, 0);
+    }
+
+    static EncodingWriter forCharset(OutputStream out, String charsetName, int flushThreshold)
+    throws UnsupportedEncodingException
+    {
+        try {
+            return new EncodingWriter(out, Charset.forName(charsetName), flushThreshold);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        }
+    }
+
+    /**
+     * Pre-encoded bytes can only be spliced into the output when the
+     * encoding has no shift state and does not write a byte-order mark.
+     */
+    private static boolean isStateless(Charset charset)
+    {
+        String name = charset.name();
+        return name.equals("UTF-8")
+            || name.equals("US-ASCII")
+            || name.equals("UTF-16BE")
+            || name.equals("UTF-16LE")
+            || name.startsWith("ISO-8859-")
+            || name.startsWith("windows-125");
+    }
+
+    Charset getCharset()
+    {
+        return charset;
+    }
+
+    boolean canSplice()
+    {
+        return canSplice;
+    }
+
+    static byte[] encode(String text, Charset charset)
+    {
+        try {
+            return text.getBytes(charset.name());
+        } catch (UnsupportedEncodingException e) {
+            // can't happen, charset was already resolved
+            return text.getBytes();
+        }
+    }
+
+    /**
+     * Static text encoded in one charset, cached by whoever owns the text.
+     */
+    static final class Encoded
+    {
+        final Charset charset;
+        final byte[][] segments;
+
+        Encoded(String[] texts, Charset charset)
+        {
+            this(texts, null, null, charset);
+        }
+
+        /**
+         * Encode texts[i].substring(offsets[i], offsets[i]+lengths[i]),
+         * or all of texts[i] if offsets is null.
+         */
+        Encoded(String[] texts, int[] offsets, int[] lengths, Charset charset)
+        {
+            this.charset = charset;
+            this.segments = new byte[texts.length][];
+            for (int i=0; i<texts.length; i++) {
+                if (texts[i] == null) continue;
+                String text = texts[i];
+                if (offsets != null && (offsets[i] > 0 || lengths[i] < text.length())) {
+                    text = text.substring(offsets[i], offsets[i] + lengths[i]);
+                }
+                segments[i] = encode(text, charset);
+            }
+        }
+
+        void measure(RetainedSize size)
+        {
+            size.addObject(2);
+            size.addArray(segments);
+            for (byte[] segment : segments) {
+                if (segment != null) size.addArray(segment.length, 1);
+            }
+        }
+    }
+
+    /**
+     * Write static text that was already encoded in this writer's charset.
+     * The original text is needed as a fallback when the bytes can't be
+     * spliced in.
+     */
+    void writeEncoded(byte[] encoded, String text)
+    throws IOException
+    {
+        writeEncoded(encoded, text, 0, text.length());
+    }
+
+    /**
+     * Same as above, where the original text is text.substring(off,off+len).
+     */
+    void writeEncoded(byte[] encoded, String text, int off, int len)
+    throws IOException
+    {
+        if (!canSplice) {
+            write(text, off, len);
+            return;
+        }
+        encodeChars(false);
+        if (chars.position() > 0) {
+            // a dangling high surrogate is waiting for its partner
+            write(text, off, len);
+            return;
+        }
+        if (encoded.length <= bytes.remaining()) {
+            bytes.put(encoded);
+        } else {
+            drainBytes();
+            out.write(encoded);
+            unflushed += encoded.length;
+        }
+        checkThreshold();
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    throws IOException
+    {
+        while (len > 0) {
+            int n = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+            if (!chars.hasRemaining()) encodeChars(false);
+        }
+        checkThreshold();
+    }
+
+    public void write(String str, int off, int len)
+    throws IOException
+    {
+        while (len > 0) {
+            int n = Math.min(len, chars.remaining());
+            chars.put(str, off, off+n);
+            off += n;
+            len -= n;
+            if (!chars.hasRemaining()) encodeChars(false);
+        }
+        checkThreshold();
+    }
+
+    public void write(int c)
+    throws IOException
+    {
+        chars.put((char)c);
+        if (!chars.hasRemaining()) encodeChars(false);
+        checkThreshold();
+    }
+
+    private void checkThreshold()
+    throws IOException
+    {
+        // pending chars count as one byte each, close enough
+        if (flushThreshold > 0
+                && unflushed + bytes.position() + chars.position() >= flushThreshold) {
+            flush();
+        }
+    }
+
+    private void encodeChars(boolean endOfInput)
+    throws IOException
+    {
+        ((Buffer)chars).flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drainBytes();
+            } else {
+                if (result.isError()) result.throwException();
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void drainBytes()
+    throws IOException
+    {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            unflushed += bytes.position();
+            ((Buffer)bytes).clear();
+        }
+    }
+
+    /**
+     * Encode everything written so far, including any unpaired trailing
+     * char, and pass the bytes on to the stream.  The stream itself is
+     * flushed but not closed.
+     */
+    void finish()
+    throws IOException
+    {
+        encodeChars(true);
+        while (encoder.flush(bytes).isOverflow()) {
+            drainBytes();
+        }
+        drainBytes();
+        encoder.reset();
+        unflushed = 0;
+        out.flush();
+    }
+
+    public void flush()
+    throws IOException
+    {
+        encodeChars(false);
+        drainBytes();
+        unflushed = 0;
+        out.flush();
+    }
+
+    public void close()
+    throws IOException
+    {
+        finish();
+        out.close();
+    }
+}
@@ -0,0 +1,63 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * FlushingWriter is the Writer behind Chunk.stream(Writer,int).  It
+ * passes output straight through and flushes the underlying Writer
+ * whenever flushThreshold chars have gone by since the last flush.
+ */
+final class FlushingWriter extends Writer
+{
+    private final Writer out;
+    private final int flushThreshold;
+    private int unflushed = 0;
+
+    FlushingWriter(Writer out, int flushThreshold)
+    {
+        this.out = out;
+        this.flushThreshold = flushThreshold;
+    }
+
+    public void write(int c)
+    throws IOException
+    {
+        out.write(c);
+        wrote(1);
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    throws IOException
+    {
+        out.write(cbuf, off, len);
+        wrote(len);
+    }
+
+    public void write(String str, int off, int len)
+    throws IOException
+    {
+        out.write(str, off, len);
+        wrote(len);
+    }
+
+    private void wrote(int len)
+    throws IOException
+    {
+        unflushed += len;
+        if (flushThreshold > 0 && unflushed >= flushThreshold) flush();
+    }
+
+    public void flush()
+    throws IOException
+    {
+        unflushed = 0;
+        out.flush();
+    }
+
+    public void close()
+    throws IOException
+    {
+        out.close();
+    }
+}
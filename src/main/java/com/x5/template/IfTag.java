@@ -2,8 +2,10 @@ package com.x5.template;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -11,7 +13,15 @@ import java.util.regex.Pattern;
 public class IfTag extends BlockTag
 {
     private String primaryCond;
-    private Map<String,CondLexer> condTests = new HashMap<String,CondLexer>();
+
+    // if/elseIf/else arms, compiled on first use (possibly by several
+    // threads, but they all come up with the same thing).
+    private volatile Branch[] branches;
+    // true if more than one test looks at the same tag
+    private boolean shareTagValues;
+
+    // shorter runs of $x == "..." tests are cheaper to just evaluate
+    private static final int MIN_SWITCH_ARMS = 4;
 
     private Snippet body;
     private boolean doTrim = true;
@@ -40,8 +50,7 @@ public class IfTag extends BlockTag
 
     private void parseParams(String params)
     {
-        String baseParam = baseParameter(params);
-        condTests.put(primaryCond, new CondLexer(baseParam));
+        this.primaryCond = baseParameter(params);
 
         options = parseAttributes(params);
         if (options == null) {
@@ -195,49 +204,177 @@ public class IfTag extends BlockTag
         return -1;
     }
 
-    private boolean isTrueExpr(String test, Chunk context)
+    /**
+     * One arm of the if/elseIf/else chain: a condition (null for else,
+     * or for a test that is always true) and the range of body parts to
+     * render when it holds.  A long run of $x == "..." tests on the same
+     * tag is collapsed into a single branch that picks the arm to render
+     * with one lookup on the tag's value.
+     */
+    private static final class Branch
     {
-        CondLexer compiledTest = condTests.get(test);
-        if (compiledTest == null) {
-            compiledTest = new CondLexer(test);
-            condTests.put(test, compiledTest);
+        final CondTree cond;
+        final int from;
+        final int to;
+
+        final SnippetTag switchTag;
+        final Map<String,Branch> cases;
+
+        Branch(CondTree cond, int from, int to)
+        {
+            this.cond = cond;
+            this.from = from;
+            this.to = to;
+            this.switchTag = null;
+            this.cases = null;
         }
 
-        try {
-            return compiledTest.parse().isTrue(context);
-        } catch (InvalidExpressionException e) {
-            e.printStackTrace(System.err);
-            return false;
+        Branch(SnippetTag switchTag, Map<String,Branch> cases)
+        {
+            this.cond = null;
+            this.from = -1;
+            this.to = -1;
+            this.switchTag = switchTag;
+            this.cases = cases;
+        }
+
+        /**
+         * @return the arm to render, or null to carry on down the chain.
+         */
+        Branch choose(Chunk context, Map<String,Object> resolved)
+        {
+            if (cases != null) {
+                Object value = Conditional.resolve(switchTag, context, resolved);
+                return (value == null) ? null : cases.get(value.toString());
+            }
+            if (cond == null || cond.isTrue(context, resolved)) {
+                return this;
+            }
+            return null;
+        }
+
+        SnippetTag getEqualsConstantTag()
+        {
+            if (cond == null) return null;
+            Conditional test = cond.getSingleTest();
+            return (test == null) ? null : test.getEqualsConstantTag();
+        }
+
+        void collectTagKeys(List<String> keys)
+        {
+            if (cond != null) cond.collectTagKeys(keys);
+            if (switchTag != null) keys.add(switchTag.getTag());
         }
     }
 
-    public void renderBlock(Writer out, Chunk context, String origin, int depth)
-    throws IOException
+    private Branch[] getBranches()
     {
+        Branch[] compiled = branches;
+        if (compiled == null) {
+            compiled = compileBranches();
+            branches = compiled;
+        }
+        return compiled;
+    }
 
+    /**
+     * Arms whose condition can never be true are dropped, and an arm
+     * whose condition is always true ends the chain.
+     */
+    private Branch[] compileBranches()
+    {
         List<SnippetPart> bodyParts = body.getParts();
+        List<Branch> arms = new ArrayList<Branch>();
+
+        String test = primaryCond;
+        int from = 0;
         int nextElseTag = nextElseTag(bodyParts,0);
+        while (true) {
+            if (test == null) {
+                // else
+                arms.add(new Branch(null, from, bodyParts.size()));
+                break;
+            }
+            int to = (nextElseTag < 0) ? bodyParts.size() : nextElseTag;
+            CondTree cond = parseCond(test);
+            Boolean constant = (cond == null) ? Boolean.FALSE : cond.getConstantValue();
+            if (constant == null) {
+                arms.add(new Branch(cond, from, to));
+            } else if (constant.booleanValue()) {
+                arms.add(new Branch(null, from, to));
+                break;
+            }
+            if (nextElseTag < 0) break;
 
-        if (isTrueExpr(primaryCond, context)) {
-            if (nextElseTag < 0) nextElseTag = bodyParts.size();
-            renderChosenParts(out, context, origin, depth, bodyParts, 0, nextElseTag);
-        } else {
-            // locate next else or elseIf tag, or output nothing
-            while (nextElseTag > -1) {
-                String elseTag = ((SnippetTag)bodyParts.get(nextElseTag)).getTag();
-                if (elseTag.equals(".else")) {
-                    renderChosenParts(out, context, origin, depth, bodyParts, nextElseTag+1, bodyParts.size());
-                    break;
-                } else {
-                    String elseIfCond = stripCasing(elseTag);
-                    if (isTrueExpr(elseIfCond, context)) {
-                        int nextBoundary = nextElseTag(bodyParts,nextElseTag+1);
-                        if (nextBoundary == -1) nextBoundary = bodyParts.size();
-                        renderChosenParts(out, context, origin, depth, bodyParts, nextElseTag+1, nextBoundary);
-                        break;
-                    }
-                    nextElseTag = nextElseTag(bodyParts,nextElseTag+1);
+            String elseTag = ((SnippetTag)bodyParts.get(nextElseTag)).getTag();
+            test = elseTag.equals(".else") ? null : stripCasing(elseTag);
+            from = nextElseTag+1;
+            nextElseTag = nextElseTag(bodyParts,from);
+        }
+
+        arms = collapseSwitches(arms);
+
+        List<String> tagKeys = new ArrayList<String>();
+        for (Branch arm : arms) {
+            arm.collectTagKeys(tagKeys);
+        }
+        shareTagValues = new HashSet<String>(tagKeys).size() < tagKeys.size();
+
+        return arms.toArray(new Branch[arms.size()]);
+    }
+
+    private List<Branch> collapseSwitches(List<Branch> arms)
+    {
+        List<Branch> collapsed = new ArrayList<Branch>();
+        int i = 0;
+        while (i < arms.size()) {
+            SnippetTag tag = arms.get(i).getEqualsConstantTag();
+            int j = i+1;
+            if (tag != null) {
+                while (j < arms.size()) {
+                    SnippetTag next = arms.get(j).getEqualsConstantTag();
+                    if (next == null || !next.getTag().equals(tag.getTag())) break;
+                    j++;
+                }
+            }
+            if (j - i < MIN_SWITCH_ARMS) {
+                collapsed.addAll(arms.subList(i, j));
+            } else {
+                Map<String,Branch> cases = new HashMap<String,Branch>();
+                for (int k=i; k<j; k++) {
+                    Branch arm = arms.get(k);
+                    String match = arm.cond.getSingleTest().getCompareTo();
+                    // first match wins, same as walking the chain
+                    if (!cases.containsKey(match)) cases.put(match, arm);
                 }
+                collapsed.add(new Branch(tag, cases));
+            }
+            i = j;
+        }
+        return collapsed;
+    }
+
+    private CondTree parseCond(String test)
+    {
+        try {
+            return new CondLexer(test).parse();
+        } catch (InvalidExpressionException e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    public void renderBlock(Writer out, Chunk context, String origin, int depth)
+    throws IOException
+    {
+        Branch[] arms = getBranches();
+        Map<String,Object> resolved = shareTagValues ? new HashMap<String,Object>() : null;
+
+        for (int i=0; i<arms.length; i++) {
+            Branch chosen = arms[i].choose(context, resolved);
+            if (chosen != null) {
+                renderChosenParts(out, context, origin, depth, body.getParts(), chosen.from, chosen.to);
+                break;
             }
         }
     }
@@ -0,0 +1,327 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.x5.util.ObjectDataMap;
+
+/**
+ * Memoized output of includes, for chunks with setMemoizeIncludes(true).
+ *
+ * While an include renders, every tag value it looks up is recorded.
+ * The output is then stored along with those reads, and the next time
+ * the same include comes up, the values are looked up again in the
+ * current chunk: if every one of them is the same as before, the stored
+ * output is written out instead of rendering the include again.
+ *
+ * Checking a memo has to be much cheaper than rendering, so only plain
+ * {$name} lookups of plain values (strings, numbers, templates) qualify.
+ * An include with a tag that has filters or a dotted path, or that reads
+ * a deferred value, a map, a list, a nested chunk, another include or
+ * any other {.command}, is never memoized, and neither is one that
+ * renders a loop or macro (those read through chunks of their own).
+ *
+ * The store is bounded by the total length of memoized output, set with
+ * the system property chunk.includememo (in chars).
+ */
+final class IncludeMemo
+{
+    private static final int MAX_VARIANTS = 8;
+
+    private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<Recording>();
+    private static final MemoStore STORE = new MemoStore(getMaxWeight());
+
+    // number of recordings under way on any thread, so that lookups
+    // outside of a memoized include skip the thread-local entirely
+    private static final AtomicInteger recordings = new AtomicInteger();
+
+    private IncludeMemo()
+    {
+    }
+
+    private static long getMaxWeight()
+    {
+        String setting = System.getProperty("chunk.includememo");
+        if (setting != null) {
+            try {
+                return Long.parseLong(setting.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return 1024 * 1024;
+    }
+
+    /**
+     * Called from Chunk for every tag value resolved.
+     */
+    static void recordRead(Chunk reader, SnippetTag tag, boolean ignoreParentContext)
+    {
+        if (recordings.get() == 0) return;
+        Recording recording = CURRENT.get();
+        if (recording == null || !recording.isMemoizable) return;
+
+        if (reader != recording.chunk || ignoreParentContext || !isPlainLookup(tag)) {
+            recording.isMemoizable = false;
+            return;
+        }
+        String name = tag.getPath()[0];
+        Object value = reader.lookupRawValue(name);
+        if (isComparable(value)) {
+            recording.add(name, value);
+        } else {
+            recording.isMemoizable = false;
+        }
+    }
+
+    /**
+     * @return true if the tag's output depends on nothing but the value
+     * found under its name (and its default).
+     */
+    private static boolean isPlainLookup(SnippetTag tag)
+    {
+        String[] path = tag.getPath();
+        return path.length == 1 && path[0].charAt(0) != '.'
+            && !tag.hasBackticks() && tag.getFilters() == null;
+    }
+
+    private static boolean isComparable(Object value)
+    {
+        // immutable, and equal values render the same
+        return value == null || value instanceof String || value instanceof Snippet
+            || ObjectDataMap.isWrapperType(value.getClass());
+    }
+
+    private static boolean sameValue(Object a, Object b)
+    {
+        if (a == null || b == null) return a == b;
+        // a snippet only matches itself (eg the same include)
+        if (a instanceof Snippet || b instanceof Snippet) return a == b;
+        return a.equals(b);
+    }
+
+    private static boolean same(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static void render(Snippet include, Writer out, Chunk rules, int depth)
+    throws IOException
+    {
+        if (include.isSimple() || rules.getParallelExecutor() != null
+                || RenderFrame.isSkippingSharedCaches()) {
+            // nothing to gain, reads would happen on other threads,
+            // or the output is not to be kept (eg a warm-up render)
+            include.render(out, rules, depth);
+            return;
+        }
+
+        Recording outer = CURRENT.get();
+        if (outer != null && outer.chunk != rules) outer.isMemoizable = false;
+
+        Memo memo = STORE.find(include, rules);
+        if (memo != null) {
+            if (outer != null) outer.addAll(memo);
+            out.write(memo.output);
+            return;
+        }
+
+        Recording recording = new Recording(rules);
+        CURRENT.set(recording);
+        recordings.incrementAndGet();
+
+        String output;
+        RenderBuffer buffer = RenderBuffer.acquire(include.getOutputSizeHint());
+        try {
+            include.render(buffer, rules, depth);
+            output = buffer.toString();
+        } catch (IOException e) {
+            recording.isMemoizable = false;
+            throw e;
+        } catch (RuntimeException e) {
+            recording.isMemoizable = false;
+            throw e;
+        } finally {
+            RenderBuffer.release(buffer);
+            recordings.decrementAndGet();
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+                // whatever the include depended on, so does its container
+                if (recording.isMemoizable) {
+                    outer.addAll(recording);
+                } else {
+                    outer.isMemoizable = false;
+                }
+            }
+        }
+
+        include.recordOutputSize(output.length());
+        if (recording.isMemoizable) {
+            STORE.put(include, new Memo(recording, rules, output));
+        }
+        out.write(output);
+    }
+
+    /**
+     * Drop everything memoized so far.
+     */
+    static void clear()
+    {
+        STORE.clear();
+    }
+
+    static int size()
+    {
+        return STORE.size();
+    }
+
+    private static final class Recording
+    {
+        final Chunk chunk;
+        final List<String> names = new ArrayList<String>();
+        final List<Object> values = new ArrayList<Object>();
+        boolean isMemoizable = true;
+
+        Recording(Chunk chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        void add(String name, Object value)
+        {
+            names.add(name);
+            values.add(value);
+        }
+
+        void addAll(Recording inner)
+        {
+            if (!isMemoizable) return;
+            names.addAll(inner.names);
+            values.addAll(inner.values);
+        }
+
+        void addAll(Memo memo)
+        {
+            if (!isMemoizable) return;
+            for (int i=0; i<memo.names.length; i++) {
+                add(memo.names[i], memo.values[i]);
+            }
+        }
+    }
+
+    private static final class Memo
+    {
+        final String[] names;
+        final Object[] values;
+        final String output;
+
+        // chunk settings that change output without being tag reads
+        final ChunkFactory factory;
+        final String localeCode;
+        final boolean renderErrs;
+
+        Memo(Recording recording, Chunk rules, String output)
+        {
+            this.names = recording.names.toArray(new String[recording.names.size()]);
+            this.values = recording.values.toArray();
+            this.output = output;
+            this.factory = rules.getChunkFactory();
+            ChunkLocale locale = rules.getLocale();
+            this.localeCode = (locale == null) ? null : locale.toString();
+            this.renderErrs = rules.renderErrorsToOutput();
+        }
+
+        boolean matches(Chunk rules)
+        {
+            if (factory != rules.getChunkFactory() || renderErrs != rules.renderErrorsToOutput()) {
+                return false;
+            }
+            ChunkLocale locale = rules.getLocale();
+            if (!same(localeCode, locale == null ? null : locale.toString())) return false;
+
+            for (int i=0; i<names.length; i++) {
+                if (!sameValue(values[i], rules.lookupRawValue(names[i]))) return false;
+            }
+            return true;
+        }
+
+        int weight()
+        {
+            return Math.max(1, output.length());
+        }
+    }
+
+    private static final class MemoStore
+    {
+        // access-ordered, so iteration starts at the least recently used
+        private final LinkedHashMap<Snippet,Memo[]> memos
+            = new LinkedHashMap<Snippet,Memo[]>(64, 0.75f, true);
+        private final long maxWeight;
+        private long weight = 0;
+
+        MemoStore(long maxWeight)
+        {
+            this.maxWeight = maxWeight;
+        }
+
+        Memo find(Snippet include, Chunk rules)
+        {
+            Memo[] variants;
+            synchronized (this) {
+                variants = memos.get(include);
+            }
+            if (variants == null) return null;
+            for (Memo memo : variants) {
+                if (memo.matches(rules)) return memo;
+            }
+            return null;
+        }
+
+        synchronized void put(Snippet include, Memo memo)
+        {
+            if (memo.weight() > maxWeight) return;
+
+            Memo[] variants = memos.get(include);
+            int keep = (variants == null) ? 0 : Math.min(variants.length, MAX_VARIANTS-1);
+            // most recent first
+            Memo[] updated = new Memo[keep+1];
+            updated[0] = memo;
+            if (keep > 0) System.arraycopy(variants, 0, updated, 1, keep);
+            if (variants != null) weight -= weight(variants);
+            memos.put(include, updated);
+            weight += weight(updated);
+
+            Iterator<Memo[]> lru = memos.values().iterator();
+            while (weight > maxWeight && lru.hasNext()) {
+                Memo[] eldest = lru.next();
+                if (eldest == updated) continue;
+                weight -= weight(eldest);
+                lru.remove();
+            }
+        }
+
+        private static long weight(Memo[] variants)
+        {
+            long total = 0;
+            for (Memo memo : variants) total += memo.weight();
+            return total;
+        }
+
+        synchronized int size()
+        {
+            return memos.size();
+        }
+
+        synchronized void clear()
+        {
+            memos.clear();
+            weight = 0;
+        }
+    }
+}
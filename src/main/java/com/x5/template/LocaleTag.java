@@ -51,7 +51,7 @@ public class LocaleTag extends BlockTag
         this.args = cleanParams.split(" *(?<!\\\\), *");
     }
 
-    private String _translate()
+    private String _translate(Chunk context)
     {
         ChunkLocale locale = context.getLocale();
         if (locale == null) {
@@ -196,9 +196,7 @@ public class LocaleTag extends BlockTag
     {
         if (body == null) return;
 
-        this.context = context;
-
-        String translated = _translate();
+        String translated = _translate(context);
         out.append( translated );
     }
 }
@@ -27,8 +27,8 @@ public class LoopTag extends BlockTag
 
     private SnippetTag dataTag = null;
 
-    // for speed
-    private Chunk rowX;
+    // divider="..." option, resolved on first render
+    private volatile Snippet dividerOptionSnippet = null;
 
     private static final String FIRST_MARKER = "first";
     private static final String LAST_MARKER = "last";
@@ -361,7 +361,7 @@ public class LoopTag extends BlockTag
             return;
         }
 
-        Snippet dividerSnippet = null;
+        Snippet dividerSnippet = this.dividerSnippet;
         boolean createArrayTags = false;
         boolean counterTags = false;
         int counterOffset = 0;
@@ -374,18 +374,19 @@ public class LoopTag extends BlockTag
         String objectValueLabel = null;
 
         if (options != null) {
-            if (options.containsKey("dividerSnippet")) {
-                dividerSnippet = (Snippet)options.get("dividerSnippet");
-            } else if (options.containsKey("divider")) {
-                String dividerTemplate = (String)options.get("divider");
-                dividerTemplate = qualifyTemplateRef(origin, dividerTemplate);
-                ContentSource templates = context.getTemplateSet();
-                if (templates != null && templates.provides(dividerTemplate)) {
-                    dividerSnippet = templates.getSnippet(dividerTemplate);
-                } else {
-                    dividerSnippet = Snippet.getSnippet(dividerTemplate);
+            if (dividerSnippet == null && options.containsKey("divider")) {
+                dividerSnippet = dividerOptionSnippet;
+                if (dividerSnippet == null) {
+                    String dividerTemplate = (String)options.get("divider");
+                    dividerTemplate = qualifyTemplateRef(origin, dividerTemplate);
+                    ContentSource templates = context.getTemplateSet();
+                    if (templates != null && templates.provides(dividerTemplate)) {
+                        dividerSnippet = templates.getSnippet(dividerTemplate);
+                    } else {
+                        dividerSnippet = Snippet.getSnippet(dividerTemplate);
+                    }
+                    dividerOptionSnippet = dividerSnippet;
                 }
-                options.put("dividerSnippet", dividerSnippet);
             }
             if (options.containsKey("array_tags")) {
                 createArrayTags = true;
@@ -432,11 +433,10 @@ public class LoopTag extends BlockTag
 
         ChunkFactory factory = context.getChunkFactory();
 
-        if (this.rowX == null) {
-            this.rowX = (factory == null) ? new Chunk() : factory.makeChunk();
-            this.rowX.append(rowSnippet);
-        }
-        // make sure cached rowX chunk matches context locale
+        // one row chunk per render, so the loop can render on several
+        // threads at once.  it is re-used for every row of this render.
+        Chunk rowX = (factory == null) ? new Chunk() : factory.makeChunk();
+        rowX.append(rowSnippet);
         rowX.setLocale(context.getLocale());
 
         String prefix = null;
@@ -585,7 +585,6 @@ public class LoopTag extends BlockTag
         }
         // no side effects!
         data.reset();
-        rowX.resetTags();
     }
 
     private String eatTagSymbol(String tag)
@@ -853,10 +852,6 @@ public class LoopTag extends BlockTag
     public void renderBlock(Writer out, Chunk context, String origin, int depth)
         throws IOException
     {
-        if (dividerSnippet != null && !options.containsKey("dividerSnippet")) {
-            options.put("dividerSnippet", dividerSnippet);
-        }
-
         TableData data = null;
 
         if (options != null) {
@@ -420,8 +420,8 @@ public class MacroTag extends BlockTag
         ChunkFactory theme = context.getChunkFactory();
 
         if (templateRef != null && theme != null) {
-            templateRef = qualifyTemplateRef(origin, templateRef);
-            macro = theme.makeChunk(templateRef);
+            String fullRef = qualifyTemplateRef(origin, templateRef);
+            macro = theme.makeChunk(fullRef);
         } else if (template != null) {
             macro = (theme == null) ? new Chunk() : theme.makeChunk();
             macro.append(template);
@@ -456,6 +456,57 @@ public class MacroTag extends BlockTag
         macro.render(out, context);
     }
 
+    /**
+     * An exec with an inline template that only substitutes its own static
+     * data renders the same every time, so it can be rendered up front.
+     *
+     * @return the output, or null if rendering depends on the context.
+     */
+    String renderStatic()
+    {
+        if (templateRef != null || template == null || inputErrs != null) return null;
+        if (template.isSimple()) return template.toString();
+
+        StringBuilder out = new StringBuilder();
+        for (SnippetPart part : template.getParts()) {
+            if (part instanceof SnippetComment) {
+                continue;
+            } else if (part.getClass() == SnippetPart.class) {
+                if (part.isLiteral()) out.append(part.getText());
+            } else if (part instanceof SnippetTag && !(part instanceof SnippetBlockTag)) {
+                String value = staticDefFor((SnippetTag)part);
+                if (value == null) return null;
+                out.append(value);
+            } else {
+                return null;
+            }
+        }
+        return out.toString();
+    }
+
+    private String staticDefFor(SnippetTag tag)
+    {
+        if (macroDefs == null) return null;
+        if (tag.hasBackticks() || tag.getFilters() != null || tag.getDefaultValue() != null) {
+            return null;
+        }
+        String[] path = tag.getPath();
+        if (path.length > 1) return null;
+
+        Object def = macroDefs.get(path[0]);
+        String text = null;
+        if (def instanceof Snippet) {
+            Snippet snippet = (Snippet)def;
+            if (!snippet.isSimple()) return null;
+            text = snippet.toString();
+        } else if (def instanceof String) {
+            text = (String)def;
+        }
+        // anything that might parse as a tag has to wait for render time
+        if (text == null || text.indexOf('{') > -1 || text.indexOf("_[") > -1) return null;
+        return text;
+    }
+
     private Object resolvePointers(Chunk context, String origin, Object o, int depth)
     {
         // don't recurse forever...
@@ -0,0 +1,108 @@
+package com.x5.template;
+
+import java.io.Writer;
+
+/**
+ * RenderBuffer is an unsynchronized stand-in for StringWriter, used
+ * wherever a render is captured as a String.
+ *
+ * Each thread keeps one spare buffer, so back-to-back toString() calls
+ * re-use the same char array instead of growing a fresh StringBuffer
+ * every time.  Nested captures simply get a buffer of their own.
+ */
+final class RenderBuffer extends Writer
+{
+    private static final int MIN_CAPACITY = 256;
+    // don't hang on to the backing array of a huge render
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<RenderBuffer> SPARE = new ThreadLocal<RenderBuffer>();
+
+    private char[] buf;
+    private int count = 0;
+
+    private RenderBuffer(int capacity)
+    {
+        this.buf = new char[Math.max(capacity, MIN_CAPACITY)];
+    }
+
+    /**
+     * @param expectedSize best guess at the output length, or 0.
+     */
+    static RenderBuffer acquire(int expectedSize)
+    {
+        RenderBuffer spare = SPARE.get();
+        if (spare == null) {
+            return new RenderBuffer(expectedSize);
+        }
+        SPARE.set(null);
+        spare.ensureCapacity(expectedSize);
+        return spare;
+    }
+
+    static void release(RenderBuffer buffer)
+    {
+        if (buffer.buf.length > MAX_POOLED_CAPACITY) return;
+        buffer.count = 0;
+        SPARE.set(buffer);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= buf.length) return;
+        int newCapacity = Math.max(buf.length * 2, capacity);
+        char[] grown = new char[newCapacity];
+        System.arraycopy(buf, 0, grown, 0, count);
+        buf = grown;
+    }
+
+    public void write(int c)
+    {
+        ensureCapacity(count + 1);
+        buf[count++] = (char)c;
+    }
+
+    public void write(char[] cbuf, int off, int len)
+    {
+        ensureCapacity(count + len);
+        System.arraycopy(cbuf, off, buf, count, len);
+        count += len;
+    }
+
+    public void write(String str)
+    {
+        write(str, 0, str.length());
+    }
+
+    public void write(String str, int off, int len)
+    {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, buf, count);
+        count += len;
+    }
+
+    public Writer append(CharSequence csq)
+    {
+        String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    public int length()
+    {
+        return count;
+    }
+
+    public void flush()
+    {
+    }
+
+    public void close()
+    {
+    }
+
+    public String toString()
+    {
+        return new String(buf, 0, count);
+    }
+}
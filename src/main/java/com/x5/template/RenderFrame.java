@@ -0,0 +1,182 @@
+package com.x5.template;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.FutureTask;
+
+/**
+ * RenderFrame holds the per-render state of one Chunk: the ancestors it
+ * falls back on for tag values, and the origin of the template whose tag
+ * is currently being resolved.
+ *
+ * Frames are kept on a per-thread stack rather than in the Chunk itself,
+ * so a Chunk is left untouched while it renders and any number of threads
+ * may render the same Chunk at the same time without locking.
+ */
+final class RenderFrame
+{
+    private static final ThreadLocal<RenderFrame> CURRENT = new ThreadLocal<RenderFrame>();
+
+    final Chunk chunk;
+    final Vector<Chunk> ancestors;
+    final RenderFrame parent;
+
+    // origin of the template containing the tag being resolved
+    String origin;
+
+    // deferred Callables started during this render, outermost frame only
+    private Map<Object,FutureTask<Object>> deferred;
+
+    // set on frames handed to another thread by fork(), and on any
+    // frames pushed on top of those
+    private boolean isForked = false;
+
+    // set for the whole stack once a chunk that skips the shared output
+    // caches starts rendering (see Chunk.setSkipSharedCaches)
+    private boolean skipsSharedCaches = false;
+
+    private RenderFrame(Chunk chunk, Vector<Chunk> ancestors, RenderFrame parent)
+    {
+        this.chunk = chunk;
+        this.ancestors = ancestors;
+        this.parent = parent;
+    }
+
+    private RenderFrame(RenderFrame source, RenderFrame parentCopy)
+    {
+        this(source.chunk, source.ancestors, parentCopy);
+        this.origin = source.origin;
+        this.deferred = source.deferred;
+        this.isForked = true;
+        this.skipsSharedCaches = source.skipsSharedCaches;
+    }
+
+    static RenderFrame push(Chunk chunk, Vector<Chunk> ancestors)
+    {
+        RenderFrame parent = CURRENT.get();
+        RenderFrame frame = new RenderFrame(chunk, ancestors, parent);
+        if (parent != null) {
+            frame.isForked = parent.isForked;
+            frame.skipsSharedCaches = parent.skipsSharedCaches;
+        }
+        if (chunk.isSkippingSharedCaches()) frame.skipsSharedCaches = true;
+        CURRENT.set(frame);
+        return frame;
+    }
+
+    static void pop(RenderFrame frame)
+    {
+        if (frame.parent == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(frame.parent);
+        }
+    }
+
+    /**
+     * @return the outermost frame on this thread, or null if nothing
+     * is rendering.
+     */
+    static RenderFrame root()
+    {
+        RenderFrame frame = CURRENT.get();
+        if (frame == null) return null;
+        while (frame.parent != null) {
+            frame = frame.parent;
+        }
+        return frame;
+    }
+
+    /**
+     * Deferred values are keyed by identity, so a Callable referenced many
+     * times (or from several chunks) is still only called once per render.
+     *
+     * @return the task already started for this callable during this
+     * render, or else task, which the caller is then to start.
+     */
+    FutureTask<Object> putDeferredIfAbsent(Object callable, FutureTask<Object> task)
+    {
+        // forked frames share the map, and it is created before any
+        // fork, so a null map is only ever seen by its own thread.
+        if (deferred == null) deferred = new IdentityHashMap<Object,FutureTask<Object>>();
+        Map<Object,FutureTask<Object>> map = deferred;
+        synchronized (map) {
+            FutureTask<Object> started = map.get(callable);
+            if (started != null) return started;
+            map.put(callable, task);
+            return task;
+        }
+    }
+
+    /**
+     * Copy this thread's frame stack so that part of the current render
+     * can carry on in another thread (see enter), with the same ancestors,
+     * origins and deferred values.
+     */
+    static RenderFrame fork()
+    {
+        RenderFrame root = root();
+        if (root == null) return null;
+        if (root.deferred == null) root.deferred = new IdentityHashMap<Object,FutureTask<Object>>();
+        return copy(CURRENT.get());
+    }
+
+    private static RenderFrame copy(RenderFrame frame)
+    {
+        if (frame == null) return null;
+        return new RenderFrame(frame, copy(frame.parent));
+    }
+
+    /**
+     * @return true if this thread is rendering a forked part of a render.
+     */
+    static boolean isForked()
+    {
+        RenderFrame frame = CURRENT.get();
+        return frame != null && frame.isForked;
+    }
+
+    /**
+     * @return true if the render under way on this thread is to leave the
+     * shared output caches ({% cache %} fragments, memoized includes) alone.
+     */
+    static boolean isSkippingSharedCaches()
+    {
+        RenderFrame frame = CURRENT.get();
+        return frame != null && frame.skipsSharedCaches;
+    }
+
+    /**
+     * Make a forked frame stack current on this thread.
+     * @return the previous frame, to be passed on to leave().
+     */
+    static RenderFrame enter(RenderFrame forked)
+    {
+        RenderFrame previous = CURRENT.get();
+        CURRENT.set(forked);
+        return previous;
+    }
+
+    static void leave(RenderFrame previous)
+    {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return the innermost frame on this thread in which chunk is
+     * rendering, or null if chunk is not currently rendering.
+     */
+    static RenderFrame find(Chunk chunk)
+    {
+        RenderFrame frame = CURRENT.get();
+        while (frame != null && frame.chunk != chunk) {
+            frame = frame.parent;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,86 @@
+package com.x5.template;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Rough tally of the heap held by parsed templates, assuming a 64-bit
+ * JVM with compressed references and compact strings.  Anything reached
+ * more than once (a template source shared by all its parts, say) is
+ * only counted the first time.
+ */
+final class RetainedSize
+{
+    private static final int HEADER = 12;
+    private static final int REF = 4;
+
+    private final Map<Object,Object> seen = new IdentityHashMap<Object,Object>();
+    private long bytes = 0;
+
+    private boolean firstVisit(Object x)
+    {
+        if (x == null || seen.containsKey(x)) return false;
+        seen.put(x, x);
+        return true;
+    }
+
+    private static long align(long size)
+    {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Count an object shell with this many reference/int sized fields.
+     */
+    void addObject(int fields)
+    {
+        bytes += align(HEADER + fields * REF);
+    }
+
+    void addArray(Object[] array)
+    {
+        if (!firstVisit(array)) return;
+        bytes += align(HEADER + REF + array.length * REF);
+    }
+
+    void addArray(int length, int elementSize)
+    {
+        bytes += align(HEADER + REF + (long)length * elementSize);
+    }
+
+    void addString(String text)
+    {
+        if (!firstVisit(text)) return;
+        int width = 1;
+        for (int i=0; i<text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                width = 2;
+                break;
+            }
+        }
+        addObject(3);
+        addArray(text.length(), width);
+    }
+
+    void addStrings(String[] strings)
+    {
+        if (strings == null || !firstVisit(strings)) return;
+        bytes += align(HEADER + REF + strings.length * REF);
+        for (String s : strings) addString(s);
+    }
+
+    void addPart(SnippetPart part)
+    {
+        if (firstVisit(part)) part.measure(this);
+    }
+
+    void addSnippet(Snippet snippet)
+    {
+        if (firstVisit(snippet)) snippet.measure(this);
+    }
+
+    long getBytes()
+    {
+        return bytes;
+    }
+}
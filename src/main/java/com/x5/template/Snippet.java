@@ -2,11 +2,8 @@ package com.x5.template;
 
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,14 +12,12 @@ public class Snippet
     private List<SnippetPart> parts = null;
     private String simpleText = null;
     private String origin = null;
-    private long lastAccess = 0;
+    private volatile SnippetProgram program = null;
+    private volatile EncodingWriter.Encoded encodedText = null;
+    private int outputSizeHint = 0;
 
-    private static boolean useCache = isCacheEnabled();
-    private static Map<String,Snippet> snippetCache = useCache ? new ConcurrentHashMap<String,Snippet>(512) : null;
-    private static long lastGC = 0;
-    private static long gcCounter = 0;
-    private static final int gcInterval = 500;
-    private static final long CAN_GC_AFTER = 1000 * 60;
+    private static final SnippetCache cache = SnippetCache.fromSystemProperty();
+    private static final String[] NO_TAG_NAMES = new String[0];
 
     private Snippet(String template)
     {
@@ -37,66 +32,47 @@ public class Snippet
 
     public static Snippet getSnippet(String template)
     {
-        if (Snippet.useCache) {
-            return getSnippetFromCache(template, null);
-        } else {
-            return new Snippet(template);
-        }
+        return getSnippet(template, null);
     }
 
     public static Snippet getSnippet(String template, String origin)
     {
-        if (Snippet.useCache) {
-            return getSnippetFromCache(template, origin);
-        } else {
+        if (cache == null || template == null) {
             return new Snippet(template, origin);
         }
-    }
-
-    /* premature optimization? */
-    private static Snippet getSnippetFromCache(String template, String origin)
-    {
-        long timestamp = System.currentTimeMillis();
-
-        if (++gcCounter % gcInterval == 0) {
-            pruneCache(timestamp);
-        }
-
-        Snippet s = snippetCache.get(template);
-        if (s != null) {
-            s.lastAccess = timestamp;
-            return s;
-        } else {
+        Snippet s = cache.get(template, origin);
+        if (s == null) {
             s = new Snippet(template, origin);
-            s.lastAccess = timestamp;
-            snippetCache.put(template, s);
-            return s;
+            cache.put(template, origin, s);
         }
+        return s;
     }
 
-    private static boolean isCacheEnabled()
+    /**
+     * Parse a template for a ContentSource that caches its templates
+     * itself (eg TemplateSet, TemplateArchive).  These skip the shared
+     * cache, which is meant for templates that come up at render time,
+     * so only the source's own bounds apply to them.  Tag names are
+     * shared through names, see SnippetTag.canonicalize.
+     */
+    static Snippet parseOwned(String template, String origin, StringPool names)
     {
-        String useCacheProperty = System.getProperty("chunk.snippetcache");
-        if (useCacheProperty == null) {
-            return false;
-        } else {
-            return true;
-        }
+        Snippet snippet = new Snippet(template, origin);
+        snippet.canonicalizeTags(names);
+        return snippet;
     }
 
-    private static void pruneCache(long timestamp)
+    /**
+     * Parsed templates are shared through a bounded cache (see
+     * SnippetCache), so a Snippet returned by getSnippet() must not be
+     * modified.
+     *
+     * @return the cache, for its hit/miss stats, or null if caching is
+     * turned off.
+     */
+    public static SnippetCache getCache()
     {
-        long threshhold = timestamp - CAN_GC_AFTER;
-        if (lastGC > threshhold) return;
-
-        Iterator<java.util.Map.Entry<String,Snippet>> i = snippetCache.entrySet().iterator();
-        while (i.hasNext()) {
-            java.util.Map.Entry<String,Snippet> entry = i.next();
-            if (entry.getValue().lastAccess < threshhold) {
-                snippetCache.remove(entry.getKey());
-            }
-        }
-        lastGC = timestamp;
+        return cache;
     }
 
     public Snippet(List<SnippetPart> bodyParts)
@@ -124,6 +100,8 @@ public class Snippet
     public void setOrigin(String origin)
     {
         this.origin = origin;
+        // origin is baked into the compiled program
+        this.program = null;
     }
 
     public String getOrigin()
@@ -131,6 +109,10 @@ public class Snippet
         return this.origin;
     }
 
+    /**
+     * Parts should be considered read-only once the snippet has been
+     * rendered, since rendering runs from a program compiled from them.
+     */
     public List<SnippetPart> getParts()
     {
         return parts;
@@ -141,7 +123,8 @@ public class Snippet
     /**
      * One pass over the string.  Identify all dynamic tags and slice into
      * parts - literals will pass directly into output, dynamic SnippetTag parts
-     * will get interpreted.
+     * will get interpreted.  Literals are spans of the template string
+     * rather than copies, so the template is kept for as long as they are.
      *
      * Second step is to nest block tags properly.
      *
@@ -239,9 +222,7 @@ public class Snippet
                         // FOUND TOKEN END
                         parts = getPartsForAppend();
                         if (marker < tagStart) {
-                            SnippetPart literal = new SnippetPart(template.substring(marker,tagStart));
-                            literal.setLiteral(true);
-                            parts.add(literal);
+                            parts.add(new SnippetPart(template, marker, tagStart));
                         }
                         String wholeTag = template.substring(tagStart,i+1);
                         String tokenStr = template.substring(tagStart+2,i);
@@ -257,10 +238,7 @@ public class Snippet
                         if (insideLiteral) {
                             // scanning for end of literal
                             if (isLiteralClose(template,magicChar,tagStart,i)) {
-                                String literalText = template.substring(marker,i+1);
-                                SnippetPart literal = new SnippetPart(literalText);
-                                literal.setLiteral(true);
-                                parts.add(literal);
+                                parts.add(new SnippetPart(template, marker, i+1));
                                 // reset...
                                 marker = i+1;
                                 insideLiteral = false;
@@ -348,11 +326,10 @@ public class Snippet
                 parts.add(finalComment);
             } else if (marker < template.length()) {
                 // add marker-to-end as literal
-                SnippetPart finalLiteral = new SnippetPart(template.substring(marker));
-                finalLiteral.setLiteral(true);
-                parts.add(finalLiteral);
+                parts.add(new SnippetPart(template, marker, template.length()));
             }
             groupBlocks(parts);
+            SnippetOptimizer.optimize(parts);
         }
 
     }
@@ -435,13 +412,12 @@ public class Snippet
 
         // any static content leading up to tag?  capture static part.
         if (marker < tagStart) {
-            SnippetPart literal = new SnippetPart(template.substring(marker,tagStart));
-            literal.setLiteral(true);
-            parts.add(literal);
+            parts.add(new SnippetPart(template, marker, tagStart));
         }
 
         // and now focus on the tag...
-        String wholeTag = template.substring(tagStart,i+1);
+        int tagEnd = i+1;
+        String wholeTag = template.substring(tagStart,tagEnd);
 
         // remove trailing whitespace from expr if nec.
         if (wholeTag.charAt(1) == '%') {
@@ -456,7 +432,7 @@ public class Snippet
             if (gooeyCenter.startsWith(".end")) {
                 gooeyCenter = "./" + gooeyCenter.substring(4);
             }
-            SnippetTag tag = new SnippetTag(wholeTag, gooeyCenter);
+            SnippetTag tag = new SnippetTag(template, tagStart, tagEnd, gooeyCenter);
             return tag;
         } else if (magicChar == '^' || magicChar == '.') {
             String gooeyCenter = template.substring(exprStart,i);
@@ -465,16 +441,19 @@ public class Snippet
                 // null return signals literal-start to caller
                 return null;
             }
+            if (gooeyCenter.equals(SnippetFlush.FLUSH_MARKER)) {
+                return new SnippetFlush(wholeTag);
+            }
             if (gooeyCenter.startsWith("end")) {
                 gooeyCenter = "/" + gooeyCenter.substring(3);
             }
             // prepend . to signal bareword/command
-            SnippetTag tag = new SnippetTag(wholeTag,"."+gooeyCenter);
+            SnippetTag tag = new SnippetTag(template, tagStart, tagEnd, "."+gooeyCenter);
             return tag;
         } else if (magicChar == '/') {
             String gooeyCenter = template.substring(exprStart,i);
             // expand {/ to {^/ to {~./
-            SnippetTag tag = new SnippetTag(wholeTag,"./"+gooeyCenter);
+            SnippetTag tag = new SnippetTag(template, tagStart, tagEnd, "./"+gooeyCenter);
             return tag;
         } else if (magicChar == '*') {
             // convert macro syntax to internal macro block-tag
@@ -533,17 +512,18 @@ public class Snippet
     {
         // strip comment into non-rendering part
         parts = getPartsForAppend();
-        String precedingComment = null;
+        // end of static text leading up to comment, if any
+        int precedingEnd = -1;
 
         int startOfThisLine = marker;
         if (marker < tagStart) {
-            precedingComment = template.substring(marker,tagStart);
+            precedingEnd = tagStart;
 
             // might need to strip empty line left by stripped comment.
             // locate the start of this line by backtracking
-            int lineBreakPos = precedingComment.lastIndexOf('\n');
-            if (lineBreakPos > -1) {
-                startOfThisLine = marker + lineBreakPos + 1;
+            int lineBreakPos = template.lastIndexOf('\n', tagStart-1);
+            if (lineBreakPos >= marker) {
+                startOfThisLine = lineBreakPos + 1;
             }
 
         }
@@ -566,7 +546,7 @@ public class Snippet
                 if (startOfThisLine < tagStart) {
                     // strip leading whitespace from preceding static
                     // and shift that whitespace into the comment text
-                    precedingComment = template.substring(marker,startOfThisLine);
+                    precedingEnd = startOfThisLine;
                     tagStart = startOfThisLine;
                 }
                 // skip ahead to end of condemned line
@@ -575,10 +555,8 @@ public class Snippet
         }
 
         // preserve static leading up to comment
-        if (precedingComment != null) {
-            SnippetPart literal = new SnippetPart(precedingComment);
-            literal.setLiteral(true);
-            parts.add(literal);
+        if (precedingEnd > -1) {
+            parts.add(new SnippetPart(template, marker, precedingEnd));
         }
 
         // this grabs the comment tag as well as any surrounding
@@ -716,7 +694,7 @@ public class Snippet
         }
 
         if (eatWhitespace) {
-            prevPart.setText( text.substring(0,i) );
+            prevPart.setTextSpan(0,i);
             // TODO preserve eaten space as non-rendering part?
         }
 
@@ -790,10 +768,11 @@ public class Snippet
             if (m.find()) {
                 int firstLF = m.start();
                 if (text.substring(0,firstLF).trim().length() == 0) {
-                    nextPart.setText( text.substring(m.end()) );
+                    nextPart.setTextSpan(m.end(), text.length());
                     // shift whitespace into blockTag's end-tag?
                     // or make a non-rendering part?
-                    blockTag.getCloseTag().snippetText += text.substring(0,m.end());
+                    SnippetTag closeTag = blockTag.getCloseTag();
+                    closeTag.setText(closeTag.getText() + text.substring(0,m.end()));
                 }
             }
         }
@@ -836,12 +815,119 @@ public class Snippet
     throws java.io.IOException
     {
         if (simpleText != null) {
-            out.append(simpleText);
+            if (out instanceof EncodingWriter && ((EncodingWriter)out).canSplice()) {
+                writeEncodedText((EncodingWriter)out);
+            } else {
+                out.append(simpleText);
+            }
         } else if (parts != null) {
+            getProgram().run(out, rules, depth+1);
+        }
+    }
+
+    private void writeEncodedText(EncodingWriter out)
+    throws java.io.IOException
+    {
+        EncodingWriter.Encoded enc = encodedText;
+        if (enc == null || !enc.charset.equals(out.getCharset())) {
+            enc = new EncodingWriter.Encoded(new String[]{simpleText}, out.getCharset());
+            encodedText = enc;
+        }
+        out.writeEncoded(enc.segments[0], simpleText);
+    }
+
+    /**
+     * Parts are compiled into a flat, pre-bound program the first time
+     * the snippet renders.  Two threads racing here may each build one;
+     * they are equivalent and either may win.
+     */
+    SnippetProgram getProgram()
+    {
+        SnippetProgram compiled = program;
+        if (compiled == null) {
+            compiled = SnippetProgram.compile(parts, origin);
+            program = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * @see SnippetProgram#getTagNames()
+     */
+    String[] getTagNames()
+    {
+        if (parts == null) return NO_TAG_NAMES;
+        return getProgram().getTagNames();
+    }
+
+    /**
+     * @see SnippetTag#canonicalize(StringPool)
+     */
+    void canonicalizeTags(StringPool names)
+    {
+        if (parts == null) return;
+        for (SnippetPart part : parts) {
+            if (part instanceof SnippetBlockTag) {
+                ((SnippetBlockTag)part).getBody().canonicalizeTags(names);
+            } else if (part instanceof SnippetTag) {
+                ((SnippetTag)part).canonicalize(names);
+            }
+        }
+    }
+
+    void collectIncludes(List<SnippetTag> includes)
+    {
+        if (parts == null) return;
+        SnippetProgram compiled = program;
+        if (compiled == null) compiled = getProgram();
+        compiled.collectIncludes(includes);
+    }
+
+    /**
+     * @return moving average of the output size of past renders that
+     * started with this snippet, for pre-sizing output buffers.
+     */
+    int getOutputSizeHint()
+    {
+        return outputSizeHint;
+    }
+
+    void recordOutputSize(int size)
+    {
+        // racy on purpose, a lost update only skews the estimate
+        int hint = outputSizeHint;
+        outputSizeHint = (hint == 0) ? size : hint - (hint >> 3) + (size >> 3);
+    }
+
+    /**
+     * @return an estimate of the heap (in bytes) held by this snippet:
+     * its parts, nested block bodies, compiled program and the template
+     * text they share.  Interned strings shared with other templates
+     * are counted here too.
+     */
+    public long getRetainedSize()
+    {
+        RetainedSize size = new RetainedSize();
+        size.addSnippet(this);
+        return size.getBytes();
+    }
+
+    void measure(RetainedSize size)
+    {
+        size.addObject(8);
+        size.addString(simpleText);
+        size.addString(origin);
+        if (parts != null) {
+            size.addObject(3);
+            size.addArray(parts.size(), 4);
             for (SnippetPart part : parts) {
-                part.render(out, rules, origin, depth+1);
+                size.addPart(part);
             }
         }
+        SnippetProgram compiled = program;
+        if (compiled != null) compiled.measure(size);
+        EncodingWriter.Encoded enc = encodedText;
+        if (enc != null) enc.measure(size);
     }
 
     public Snippet copy()
@@ -930,7 +1016,18 @@ public class Snippet
             Snippet s = template.get(i);
             List<SnippetPart> parts = s.ungroupBlocks();
             if (parts != null) {
-                merged.addAll(parts);
+                for (SnippetPart part : parts) {
+                    // regrouping may trim static parts, so don't share
+                    // them with the source snippets (which may be cached
+                    // and rendering on other threads).
+                    if (part.getClass() == SnippetPart.class && part.isLiteral()) {
+                        SnippetPart literal = new SnippetPart(part.getText());
+                        literal.setLiteral(true);
+                        merged.add(literal);
+                    } else {
+                        merged.add(part);
+                    }
+                }
             }
         }
 
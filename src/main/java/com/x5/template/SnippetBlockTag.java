@@ -14,9 +14,11 @@ public class SnippetBlockTag extends SnippetTag
 
     public SnippetBlockTag(SnippetTag tagOpen, List<SnippetPart> bodyParts, SnippetTag tagClose, String origin)
     {
-        super(tagOpen.snippetText, tagOpen.tag);
+        super(tagOpen);
         this.tagOpen = tagOpen;
         this.tagClose = tagClose;
+        // before the block tag splits its body up (if/else branches etc)
+        if (bodyParts != null) SnippetOptimizer.optimize(bodyParts);
         this.body = new Snippet(bodyParts);
         this.body.setOrigin(origin);
 
@@ -34,6 +36,8 @@ public class SnippetBlockTag extends SnippetTag
             renderer = new LocaleTag(tagName,body);
         } else if (tagName.startsWith("."+MacroTag.MACRO_MARKER)) {
             renderer = new MacroTag(tagName,body);
+        } else if (tagName.startsWith(".cache")) {
+            renderer = new CacheTag(tagName,body);
         }
     }
 
@@ -46,9 +50,32 @@ public class SnippetBlockTag extends SnippetTag
         renderer.renderBlock(out, context, origin, depth);
     }
 
+    /**
+     * @return the output of this block if it can be rendered once at parse
+     * time (see SnippetOptimizer), otherwise null.
+     */
+    String renderStatic()
+    {
+        if (renderer instanceof MacroTag) {
+            return ((MacroTag)renderer).renderStatic();
+        }
+        return null;
+    }
+
     public String toString()
     {
-        return snippetText + body.toString() + tagClose.toString();
+        return getText() + body.toString() + tagClose.toString();
+    }
+
+    void measure(RetainedSize size)
+    {
+        super.measure(size);
+        size.addObject(4);
+        size.addPart(tagOpen);
+        size.addPart(tagClose);
+        size.addSnippet(body);
+        // block renderer state (if arms, loop options etc) is not counted
+        if (renderer != null) size.addObject(4);
     }
 
     public SnippetTag getOpenTag()
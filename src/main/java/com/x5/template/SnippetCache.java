@@ -0,0 +1,316 @@
+package com.x5.template;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SnippetCache holds parsed templates so that the same template text
+ * (typically a tag value that contains markup) is not parsed again on
+ * every render.
+ *
+ * The cache is bounded by weight, ie the total length of the cached
+ * template text, and split into independently locked segments, each an
+ * LRU list.  When a segment is full, a newcomer only gets in if it has
+ * been asked for more often lately than the entry it would push out,
+ * so a burst of one-off templates can not flush out the ones that keep
+ * coming back.
+ *
+ * Entries are found by a fingerprint of the template (its length and
+ * hash) and the template text is only compared in full on a hit.
+ *
+ * Configure with the system property chunk.snippetcache: "false" turns
+ * the cache off, a number sets the maximum weight in chars.
+ */
+public final class SnippetCache
+{
+    private static final int DEFAULT_MAX_WEIGHT = 2 * 1024 * 1024;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long maxWeight;
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    SnippetCache(long maxWeight)
+    {
+        this.maxWeight = maxWeight;
+        this.segments = new Segment[SEGMENTS];
+        for (int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment(maxWeight / SEGMENTS);
+        }
+    }
+
+    /**
+     * @return a cache configured from the chunk.snippetcache system
+     * property, or null if caching is turned off.
+     */
+    static SnippetCache fromSystemProperty()
+    {
+        String setting = System.getProperty("chunk.snippetcache");
+        if (setting == null) return new SnippetCache(DEFAULT_MAX_WEIGHT);
+        setting = setting.trim();
+        if (setting.equalsIgnoreCase("false") || setting.equalsIgnoreCase("off")) {
+            return null;
+        }
+        try {
+            long maxWeight = Long.parseLong(setting);
+            return (maxWeight > 0) ? new SnippetCache(maxWeight) : null;
+        } catch (NumberFormatException e) {
+            // any other value (eg "true") just means on
+            return new SnippetCache(DEFAULT_MAX_WEIGHT);
+        }
+    }
+
+    private static long fingerprint(String template, String origin)
+    {
+        int originHash = (origin == null) ? 0 : origin.hashCode();
+        long hash = template.hashCode() * 31L + originHash;
+        return (hash << 20) ^ template.length();
+    }
+
+    private Segment segmentFor(long fingerprint)
+    {
+        int h = (int)(fingerprint ^ (fingerprint >>> 32));
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS-1)];
+    }
+
+    Snippet get(String template, String origin)
+    {
+        long fingerprint = fingerprint(template, origin);
+        sketch.increment(fingerprint);
+        return segmentFor(fingerprint).get(fingerprint, template, origin);
+    }
+
+    void put(String template, String origin, Snippet snippet)
+    {
+        long fingerprint = fingerprint(template, origin);
+        segmentFor(fingerprint).put(fingerprint, new Entry(template, origin, snippet), sketch);
+    }
+
+    public long getHitCount()
+    {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMissCount()
+    {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return how many entries were pushed out to make room for others.
+     */
+    public long getEvictionCount()
+    {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return how many templates were not cached because they were not
+     * in demand enough (or were too big).
+     */
+    public long getRejectionCount()
+    {
+        long rejections = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                rejections += segment.rejections;
+            }
+        }
+        return rejections;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return total length of the cached template text.
+     */
+    public long getWeight()
+    {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    public void clear()
+    {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    public String toString()
+    {
+        return "SnippetCache[size=" + size() + ", weight=" + getWeight() + "/" + maxWeight
+            + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+            + ", evictions=" + getEvictionCount() + ", rejections=" + getRejectionCount() + "]";
+    }
+
+    private static final class Entry
+    {
+        final String template;
+        final String origin;
+        final Snippet snippet;
+
+        Entry(String template, String origin, Snippet snippet)
+        {
+            this.template = template;
+            this.origin = origin;
+            this.snippet = snippet;
+        }
+
+        boolean matches(String template, String origin)
+        {
+            if (this.origin == null ? origin != null : !this.origin.equals(origin)) return false;
+            return this.template == template || this.template.equals(template);
+        }
+
+        int weight()
+        {
+            return Math.max(1, template.length());
+        }
+    }
+
+    private static final class Segment
+    {
+        // access-ordered, eldest entry is the next eviction candidate
+        final LinkedHashMap<Long,Entry> entries = new LinkedHashMap<Long,Entry>(16, 0.75f, true);
+        final long maxWeight;
+        long weight = 0;
+
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long rejections = 0;
+
+        Segment(long maxWeight)
+        {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Snippet get(long fingerprint, String template, String origin)
+        {
+            Entry entry = entries.get(fingerprint);
+            if (entry != null && entry.matches(template, origin)) {
+                hits++;
+                return entry.snippet;
+            }
+            misses++;
+            return null;
+        }
+
+        synchronized void put(long fingerprint, Entry entry, FrequencySketch sketch)
+        {
+            int entryWeight = entry.weight();
+            if (entryWeight > maxWeight) {
+                rejections++;
+                return;
+            }
+
+            Entry previous = entries.remove(fingerprint);
+            if (previous != null) weight -= previous.weight();
+
+            if (weight + entryWeight > maxWeight) {
+                // full: only let the newcomer in if it is in more demand
+                // than the least recently used entry.
+                Map.Entry<Long,Entry> eldest = entries.entrySet().iterator().next();
+                if (sketch.frequency(fingerprint) <= sketch.frequency(eldest.getKey())) {
+                    rejections++;
+                    return;
+                }
+                Iterator<Entry> lru = entries.values().iterator();
+                while (weight + entryWeight > maxWeight && lru.hasNext()) {
+                    weight -= lru.next().weight();
+                    lru.remove();
+                    evictions++;
+                }
+            }
+
+            entries.put(fingerprint, entry);
+            weight += entryWeight;
+        }
+    }
+
+    /**
+     * Approximate, decaying count of recent requests per fingerprint
+     * (a count-min sketch with two rows).  Updates are not synchronized;
+     * a lost increment only makes the estimate a little lower.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int WIDTH = 4096;
+        private static final int MAX_COUNT = 15;
+
+        private final byte[] counts = new byte[WIDTH * 2];
+        private int additions = 0;
+
+        private static int index(long fingerprint, int row)
+        {
+            long h = fingerprint * (row == 0 ? 0x9E3779B97F4A7C15L : 0xC2B2AE3D27D4EB4FL);
+            return row * WIDTH + (int)(h >>> 52);
+        }
+
+        void increment(long fingerprint)
+        {
+            for (int row=0; row<2; row++) {
+                int i = index(fingerprint, row);
+                if (counts[i] < MAX_COUNT) counts[i]++;
+            }
+            if (++additions >= WIDTH * 10) age();
+        }
+
+        int frequency(long fingerprint)
+        {
+            return Math.min(counts[index(fingerprint, 0)], counts[index(fingerprint, 1)]);
+        }
+
+        // halve every count so that old popularity fades out
+        private void age()
+        {
+            additions = 0;
+            for (int i=0; i<counts.length; i++) {
+                counts[i] = (byte)(counts[i] >> 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.x5.template;
+
+import java.io.Writer;
+
+/**
+ * SnippetConstant stands in for a tag or block whose output was worked
+ * out when the template was parsed (see SnippetOptimizer).  toString()
+ * still returns the original template text.
+ */
+public class SnippetConstant extends SnippetPart
+{
+    private final String value;
+
+    public SnippetConstant(String text, String value)
+    {
+        super(text);
+        this.value = value;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public void render(Writer out, Chunk rules, String origin, int depth)
+    throws java.io.IOException
+    {
+        out.append(value);
+    }
+}
@@ -0,0 +1,24 @@
+package com.x5.template;
+
+import java.io.Writer;
+
+/**
+ * {% flush %} pushes everything rendered so far out to the client, eg
+ * so the browser can start on the page head while slower sections
+ * further down are still rendering.
+ */
+public class SnippetFlush extends SnippetPart
+{
+    public static final String FLUSH_MARKER = "flush";
+
+    public SnippetFlush(String text)
+    {
+        super(text);
+    }
+
+    public void render(Writer out, Chunk rules, String origin, int depth)
+    throws java.io.IOException
+    {
+        out.flush();
+    }
+}
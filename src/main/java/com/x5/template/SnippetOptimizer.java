@@ -0,0 +1,109 @@
+package com.x5.template;
+
+import java.util.List;
+
+import com.x5.template.filters.Calc;
+
+/**
+ * SnippetOptimizer makes a pass over freshly parsed (and grouped) parts,
+ * doing ahead of time whatever does not depend on the data:
+ *
+ * <UL>
+ * <LI>{.version} and {.calc("...")} with only constants in the expression
+ * are evaluated.
+ * <LI>{% exec %} blocks with an inline template and static data are
+ * rendered, provided the template does nothing but substitute the data.
+ * <LI>Adjacent static parts are merged and empty ones dropped.
+ * </UL>
+ *
+ * Block bodies get the same pass as each block is built (see
+ * SnippetBlockTag), innermost first.
+ *
+ * Folded tags and blocks become SnippetConstant parts, so the snippet
+ * still prints back out as the original template.
+ */
+final class SnippetOptimizer
+{
+    private SnippetOptimizer()
+    {
+    }
+
+    static void optimize(List<SnippetPart> parts)
+    {
+        for (int i=0; i<parts.size(); i++) {
+            SnippetPart part = parts.get(i);
+            String value = null;
+            if (part instanceof SnippetBlockTag) {
+                value = ((SnippetBlockTag)part).renderStatic();
+            } else if (part instanceof SnippetTag) {
+                value = foldTag((SnippetTag)part);
+            }
+            if (value != null) {
+                parts.set(i, new SnippetConstant(part.toString(), value));
+            }
+        }
+
+        mergeStatics(parts);
+    }
+
+    private static String foldTag(SnippetTag tag)
+    {
+        if (tag.hasBackticks() || tag.getFilters() != null || tag.getDefaultValue() != null) {
+            return null;
+        }
+        ContentDirective directive = tag.getDirective();
+        if (directive == null || tag.getPath().length > 1) return null;
+
+        if (directive.kind == ContentDirective.VERSION) {
+            return Chunk.VERSION;
+        } else if (directive.kind == ContentDirective.CALC) {
+            String calc = directive.tagName;
+            // any tag references make it data-dependent
+            if (calc.indexOf('$') > -1 || calc.indexOf('~') > -1) return null;
+            try {
+                String value = Calc.evalCalc(calc, null);
+                // leave anything odd (errors etc) to be handled at render time
+                if (value == null || value.indexOf('{') > -1 || value.indexOf('[') > -1) {
+                    return null;
+                }
+                return value;
+            } catch (NoClassDefFoundError e) {
+                // jeplite not on the classpath, error is reported at render time
+                return null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isStatic(SnippetPart part)
+    {
+        return part.getClass() == SnippetPart.class && part.isLiteral();
+    }
+
+    private static void mergeStatics(List<SnippetPart> parts)
+    {
+        for (int i=parts.size()-1; i>=0; i--) {
+            SnippetPart part = parts.get(i);
+            if (!isStatic(part)) continue;
+            if (part.getTextLength() == 0) {
+                parts.remove(i);
+            } else if (i > 0 && isStatic(parts.get(i-1))) {
+                SnippetPart prev = parts.get(i-1);
+                String source = part.getTextSource();
+                int start = prev.getTextOffset();
+                SnippetPart merged;
+                if (prev.getTextSource() == source && start + prev.getTextLength() == part.getTextOffset()) {
+                    // neighbours in the template, just widen the span
+                    merged = new SnippetPart(source, start, part.getTextOffset() + part.getTextLength());
+                } else {
+                    merged = new SnippetPart(prev.getText() + part.getText());
+                    merged.setLiteral(true);
+                }
+                parts.set(i-1, merged);
+                parts.remove(i);
+            }
+        }
+    }
+}
@@ -7,19 +7,86 @@ public class SnippetPart
     protected String snippetText;
     private boolean isLiteral = false;
 
+    // static text parsed from a template is kept as a span of the
+    // template source instead of a copy (snippetText stays null).
+    private String source;
+    private int offset;
+    private int length;
+
     public SnippetPart(String text)
     {
         this.snippetText = text;
     }
 
+    /**
+     * Literal part viewing source.substring(start,end), without copying.
+     */
+    SnippetPart(String source, int start, int end)
+    {
+        this.source = source;
+        this.offset = start;
+        this.length = end - start;
+        this.isLiteral = true;
+    }
+
+    /**
+     * Share another part's text, view or not.
+     */
+    SnippetPart(SnippetPart same)
+    {
+        this.snippetText = same.snippetText;
+        this.source = same.source;
+        this.offset = same.offset;
+        this.length = same.length;
+        this.isLiteral = same.isLiteral;
+    }
+
     public String getText()
     {
+        if (source != null) {
+            return source.substring(offset, offset+length);
+        }
         return snippetText;
     }
 
     public void setText(String text)
     {
         this.snippetText = text;
+        this.source = null;
+    }
+
+    /**
+     * Narrow this part's text to getText().substring(start,end), keeping
+     * it a view if it is one.
+     */
+    void setTextSpan(int start, int end)
+    {
+        if (source == null) {
+            setText(snippetText.substring(start,end));
+        } else {
+            this.offset += start;
+            this.length = end - start;
+        }
+    }
+
+    /**
+     * @return the string this part's text lives in, to be read from
+     * getTextOffset() for getTextLength() chars.
+     */
+    String getTextSource()
+    {
+        return (source != null) ? source : snippetText;
+    }
+
+    int getTextOffset()
+    {
+        return (source != null) ? offset : 0;
+    }
+
+    int getTextLength()
+    {
+        if (source != null) return length;
+        return (snippetText == null) ? 0 : snippetText.length();
     }
 
     public void setLiteral(boolean isLiteral)
@@ -52,7 +119,7 @@ public class SnippetPart
     throws java.io.IOException
     {
         if (isLiteral) {
-            out.append(snippetText);
+            writeText(out);
         } else {
             // ... ? shouldn't ever get here, pure SnippetPart's are now
             // static/literal content only.  subclasses of SnippetPart
@@ -60,11 +127,34 @@ public class SnippetPart
         }
     }
 
+    /**
+     * Write this part's text as-is.
+     */
+    void writeText(Writer out)
+    throws java.io.IOException
+    {
+        if (source != null) {
+            out.write(source, offset, length);
+        } else {
+            out.append(snippetText);
+        }
+    }
+
+    /**
+     * Add up the memory held by this part, see Snippet.getRetainedSize()
+     */
+    void measure(RetainedSize size)
+    {
+        size.addObject(5);
+        size.addString(snippetText);
+        size.addString(source);
+    }
+
     /**
      * toString() returns the un-interpreted content for this part
      */
     public String toString()
     {
-        return snippetText;
+        return getText();
     }
 }
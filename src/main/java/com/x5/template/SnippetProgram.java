@@ -0,0 +1,405 @@
+package com.x5.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SnippetProgram is the render-ready form of a Snippet: a flat, immutable
+ * instruction array built once from the parsed parts.  Comments and other
+ * non-rendering parts are dropped, static text is captured up front, and
+ * every tag is bound (path, filters, default value) at compile time so
+ * that rendering never has to parse anything.
+ *
+ * Block tags (loop, if, exec, ...) remain single instructions, their
+ * bodies are compiled in turn by their own Snippets.
+ *
+ * Once built, a program is never modified, so one instance can be run by
+ * any number of threads at once.
+ *
+ * When rendering to bytes (see EncodingWriter) the static text is encoded
+ * once per charset on first use and then copied out as byte arrays.
+ *
+ * Chunks that opt in to parallel rendering (Chunk.setRenderInParallel)
+ * have their includes and block tags forked onto the executor, see
+ * runParallel.
+ */
+final class SnippetProgram
+{
+    static final byte EMIT_STATIC = 0;
+    static final byte EMIT_TAG    = 1;
+    static final byte EMIT_BLOCK  = 2;
+    static final byte EMIT_PART   = 3;
+
+    private final byte[] ops;
+    // static text is statics[i].substring(offsets[i], offsets[i]+lengths[i]),
+    // usually a span of the template source (see SnippetPart)
+    private final String[] statics;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final SnippetTag[] tags;
+    private final SnippetBlockTag[] blocks;
+    private final SnippetPart[] others;
+    private final String origin;
+
+    // static text pre-encoded for the most recent byte-oriented render
+    private volatile EncodingWriter.Encoded encoded;
+
+    // number of instructions that may render on another thread, -1 until counted
+    private int forkableCount = -1;
+
+    // see getTagNames, null until first asked for
+    private volatile String[] tagNames;
+
+    private SnippetProgram(int size, String origin)
+    {
+        this.ops = new byte[size];
+        this.statics = new String[size];
+        this.offsets = new int[size];
+        this.lengths = new int[size];
+        this.tags = new SnippetTag[size];
+        this.blocks = new SnippetBlockTag[size];
+        this.others = new SnippetPart[size];
+        this.origin = origin;
+    }
+
+    static SnippetProgram compile(List<SnippetPart> parts, String origin)
+    {
+        int size = 0;
+        for (SnippetPart part : parts) {
+            if (opFor(part) > -1) size++;
+        }
+
+        SnippetProgram program = new SnippetProgram(size, origin);
+
+        int i = 0;
+        for (SnippetPart part : parts) {
+            byte op = opFor(part);
+            if (op < 0) continue;
+            program.ops[i] = op;
+            if (op == EMIT_STATIC) {
+                if (part instanceof SnippetConstant) {
+                    String value = ((SnippetConstant)part).getValue();
+                    program.statics[i] = value;
+                    program.lengths[i] = value.length();
+                } else {
+                    program.statics[i] = part.getTextSource();
+                    program.offsets[i] = part.getTextOffset();
+                    program.lengths[i] = part.getTextLength();
+                }
+            } else if (op == EMIT_TAG) {
+                SnippetTag tag = (SnippetTag)part;
+                tag.bind();
+                program.tags[i] = tag;
+            } else if (op == EMIT_BLOCK) {
+                program.blocks[i] = (SnippetBlockTag)part;
+            } else {
+                program.others[i] = part;
+            }
+            i++;
+        }
+
+        return program;
+    }
+
+    /**
+     * @return the opcode for this part, or -1 if the part never renders.
+     */
+    private static byte opFor(SnippetPart part)
+    {
+        if (part instanceof SnippetBlockTag) {
+            return EMIT_BLOCK;
+        } else if (part instanceof SnippetTag) {
+            return EMIT_TAG;
+        } else if (part.getClass() == SnippetPart.class) {
+            // plain parts only ever render literal text
+            if (!part.isLiteral() || part.getTextLength() == 0) return -1;
+            return EMIT_STATIC;
+        } else if (part instanceof SnippetConstant) {
+            // folded at parse time, see SnippetOptimizer
+            String value = ((SnippetConstant)part).getValue();
+            return (value.length() == 0) ? -1 : EMIT_STATIC;
+        } else if (part instanceof SnippetComment) {
+            return -1;
+        } else {
+            // errors, localized tokens, etc. render themselves
+            return EMIT_PART;
+        }
+    }
+
+    void run(Writer out, Chunk rules, int depth)
+    throws IOException
+    {
+        Executor executor = rules.getParallelExecutor();
+        if (executor != null && getForkableCount() > 1 && !RenderFrame.isForked()) {
+            runParallel(out, rules, depth, executor);
+            return;
+        }
+        if (out instanceof EncodingWriter) {
+            EncodingWriter encoder = (EncodingWriter)out;
+            if (encoder.canSplice()) {
+                runEncoded(encoder, rules, depth);
+                return;
+            }
+        }
+        final byte[] ops = this.ops;
+        for (int i=0; i<ops.length; i++) {
+            switch (ops[i]) {
+            case EMIT_STATIC:
+                out.write(statics[i], offsets[i], lengths[i]);
+                break;
+            case EMIT_TAG:
+                tags[i].render(out, rules, origin, depth);
+                break;
+            case EMIT_BLOCK:
+                blocks[i].render(out, rules, origin, depth);
+                break;
+            default:
+                others[i].render(out, rules, origin, depth);
+            }
+        }
+    }
+
+    /**
+     * Same as run, except static text is written as bytes that were
+     * encoded once per charset instead of once per render.
+     */
+    private void runEncoded(EncodingWriter out, Chunk rules, int depth)
+    throws IOException
+    {
+        byte[][] bytes = getEncodedStatics(out.getCharset());
+        final byte[] ops = this.ops;
+        for (int i=0; i<ops.length; i++) {
+            switch (ops[i]) {
+            case EMIT_STATIC:
+                out.writeEncoded(bytes[i], statics[i], offsets[i], lengths[i]);
+                break;
+            case EMIT_TAG:
+                tags[i].render(out, rules, origin, depth);
+                break;
+            case EMIT_BLOCK:
+                blocks[i].render(out, rules, origin, depth);
+                break;
+            default:
+                others[i].render(out, rules, origin, depth);
+            }
+        }
+    }
+
+    /**
+     * Includes and block tags can render independently of their siblings,
+     * since rendering never modifies the chunk.
+     */
+    private boolean isForkable(int i)
+    {
+        if (ops[i] == EMIT_BLOCK) return true;
+        return ops[i] == EMIT_TAG && tags[i].getPath()[0].startsWith(".include");
+    }
+
+    private int getForkableCount()
+    {
+        int count = forkableCount;
+        if (count < 0) {
+            count = 0;
+            for (int i=0; i<ops.length; i++) {
+                if (isForkable(i)) count++;
+            }
+            forkableCount = count;
+        }
+        return count;
+    }
+
+    /**
+     * Start every include and block tag on the executor, each rendering
+     * into its own buffer, then write everything out in document order.
+     * Sections are forked only at the outermost level; anything they
+     * render in turn stays on their own thread.
+     */
+    private void runParallel(Writer out, Chunk rules, int depth, Executor executor)
+    throws IOException
+    {
+        // one entry per instruction, null where it renders in place
+        List<FutureTask<String>> forked = new ArrayList<FutureTask<String>>(ops.length);
+        for (int i=0; i<ops.length; i++) {
+            FutureTask<String> task = null;
+            if (isForkable(i)) {
+                task = fork(i, rules, depth);
+                executor.execute(task);
+            }
+            forked.add(task);
+        }
+
+        byte[][] bytes = null;
+        EncodingWriter encoder = null;
+        if (out instanceof EncodingWriter && ((EncodingWriter)out).canSplice()) {
+            encoder = (EncodingWriter)out;
+            bytes = getEncodedStatics(encoder.getCharset());
+        }
+
+        for (int i=0; i<ops.length; i++) {
+            FutureTask<String> task = forked.get(i);
+            if (task != null) {
+                out.write(join(task));
+                continue;
+            }
+            switch (ops[i]) {
+            case EMIT_STATIC:
+                if (encoder == null) {
+                    out.write(statics[i], offsets[i], lengths[i]);
+                } else {
+                    encoder.writeEncoded(bytes[i], statics[i], offsets[i], lengths[i]);
+                }
+                break;
+            case EMIT_TAG:
+                tags[i].render(out, rules, origin, depth);
+                break;
+            case EMIT_BLOCK:
+                blocks[i].render(out, rules, origin, depth);
+                break;
+            default:
+                others[i].render(out, rules, origin, depth);
+            }
+        }
+    }
+
+    private FutureTask<String> fork(final int i, final Chunk rules, final int depth)
+    {
+        final RenderFrame frame = RenderFrame.fork();
+        return new FutureTask<String>(new Callable<String>() {
+            public String call() throws IOException {
+                RenderFrame previous = RenderFrame.enter(frame);
+                RenderBuffer buffer = RenderBuffer.acquire(0);
+                try {
+                    if (ops[i] == EMIT_BLOCK) {
+                        blocks[i].render(buffer, rules, origin, depth);
+                    } else {
+                        tags[i].render(buffer, rules, origin, depth);
+                    }
+                    return buffer.toString();
+                } finally {
+                    RenderBuffer.release(buffer);
+                    RenderFrame.leave(previous);
+                }
+            }
+        });
+    }
+
+    private static String join(FutureTask<String> task)
+    throws IOException
+    {
+        // not picked up yet? render it here instead of waiting for a worker.
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    private byte[][] getEncodedStatics(Charset charset)
+    {
+        EncodingWriter.Encoded enc = this.encoded;
+        if (enc == null || !enc.charset.equals(charset)) {
+            enc = new EncodingWriter.Encoded(statics, offsets, lengths, charset);
+            this.encoded = enc;
+        }
+        return enc.segments;
+    }
+
+    private static final Pattern TAG_REF = Pattern.compile("[$~]([A-Za-z0-9_]+)");
+
+    /**
+     * The names of the tag values this program refers to, in template
+     * order, including those inside block tags and their bodies.  Names
+     * are only a hint (eg for prefetching), so the block tag scan is a
+     * loose one.  Worked out on first use and kept with the program.
+     */
+    String[] getTagNames()
+    {
+        String[] names = tagNames;
+        if (names == null) {
+            Set<String> found = new LinkedHashSet<String>();
+            collectTagNames(found);
+            names = found.toArray(new String[found.size()]);
+            tagNames = names;
+        }
+        return names;
+    }
+
+    private void collectTagNames(Set<String> names)
+    {
+        for (int i=0; i<ops.length; i++) {
+            if (ops[i] == EMIT_TAG) {
+                String name = tags[i].getPath()[0];
+                if (name.length() > 0 && name.charAt(0) != '.') names.add(name);
+            } else if (ops[i] == EMIT_BLOCK) {
+                Matcher m = TAG_REF.matcher(blocks[i].getOpenTag().getTag());
+                while (m.find()) {
+                    names.add(m.group(1));
+                }
+                for (String name : blocks[i].getBody().getTagNames()) {
+                    names.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gather the {.include ...} tags, including those inside blocks.
+     * Includes named by backtick expressions aren't known until render
+     * time and are left out.
+     */
+    void collectIncludes(List<SnippetTag> includes)
+    {
+        for (int i=0; i<ops.length; i++) {
+            if (ops[i] == EMIT_TAG) {
+                ContentDirective directive = tags[i].getDirective();
+                if (directive != null && directive.kind == ContentDirective.FETCH
+                        && "include".equals(directive.protocol)) {
+                    includes.add(tags[i]);
+                }
+            } else if (ops[i] == EMIT_BLOCK) {
+                blocks[i].getBody().collectIncludes(includes);
+            }
+        }
+    }
+
+    int size()
+    {
+        return ops.length;
+    }
+
+    void measure(RetainedSize size)
+    {
+        size.addObject(11);
+        size.addStrings(tagNames);
+        size.addArray(ops.length, 1);
+        size.addStrings(statics);
+        size.addArray(offsets.length, 4);
+        size.addArray(lengths.length, 4);
+        size.addArray(tags);
+        size.addArray(blocks);
+        size.addArray(others);
+        EncodingWriter.Encoded enc = encoded;
+        if (enc != null) enc.measure(size);
+    }
+}
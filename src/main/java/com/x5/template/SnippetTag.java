@@ -11,11 +11,16 @@ public class SnippetTag extends SnippetPart
 {
     protected String tag;
 
-    private String[] path;
+    // path is written last by init(), so a non-null path means the
+    // rest of the parsed tag metadata is visible to every thread.
+    private volatile String[] path;
     private boolean hasBackticks;
     private Filter[] filters;
-    private String ifNull;
+    private String defaultValue;
     private boolean applyFiltersIfNull = false;
+    private ContentDirective directive;
+
+    private volatile Snippet compiledDefault;
 
     public SnippetTag(String text, String tag)
     {
@@ -23,6 +28,22 @@ public class SnippetTag extends SnippetPart
         this.tag = tag;
     }
 
+    /**
+     * Tag whose raw text is source.substring(start,end), without copying.
+     */
+    SnippetTag(String source, int start, int end, String tag)
+    {
+        super(source, start, end);
+        setLiteral(false);
+        this.tag = tag;
+    }
+
+    SnippetTag(SnippetTag same)
+    {
+        super(same);
+        this.tag = same.tag;
+    }
+
     public boolean isTag()
     {
         return true;
@@ -45,10 +66,17 @@ public class SnippetTag extends SnippetPart
 
         if (tagValue == null) {
             // preserve tag in final output (can be used as template)
-            out.append(super.snippetText);
+            writeText(out);
         } else if (tagValue instanceof Snippet) {
             // needs additional processing
-            ((Snippet)tagValue).render(out, rules, depth);
+            if (rules.isMemoizingIncludes()) {
+                IncludeMemo.render((Snippet)tagValue, out, rules, depth);
+            } else {
+                ((Snippet)tagValue).render(out, rules, depth);
+            }
+        } else if (tagValue == defaultValue) {
+            // unfiltered default, compiled once and re-used
+            getCompiledDefault(origin).render(out,rules,depth+1);
         } else if (tagValue instanceof String) {
             Snippet compiled = Snippet.getSnippet((String)tagValue, origin);
             compiled.render(out,rules,depth+1);
@@ -57,6 +85,43 @@ public class SnippetTag extends SnippetPart
         }
     }
 
+    private Snippet getCompiledDefault(String origin)
+    {
+        Snippet compiled = compiledDefault;
+        if (compiled == null || !sameOrigin(compiled.getOrigin(), origin)) {
+            compiled = Snippet.getSnippet(defaultValue, origin);
+            compiledDefault = compiled;
+        }
+        return compiled;
+    }
+
+    private static boolean sameOrigin(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Parse path, filters and default value now rather than on first render.
+     */
+    void bind()
+    {
+        if (path == null) init();
+    }
+
+    /**
+     * Swap the tag expression and path segments for the equal strings in
+     * names, so that templates loaded by the same TemplateSet share them.
+     */
+    void canonicalize(StringPool names)
+    {
+        this.tag = names.get(tag);
+        bind();
+        String[] path = this.path;
+        for (int i=0; i<path.length; i++) {
+            path[i] = names.get(path[i]);
+        }
+    }
+
     private void init()
     {
         String lookupName = tag;
@@ -91,14 +156,21 @@ public class SnippetTag extends SnippetPart
                 filter = tag.substring(pipePos+1);
             }
 
-            this.ifNull = defValue;
             this.applyFiltersIfNull = order.equals(Filter.FILTER_LAST);
             this.filters = Filter.parseFilterChain(filter);
+            this.defaultValue = resolveDefaultValue(defValue);
         }
 
         // break deep references like bob.hand.thumb into an array
         // of path segments
-        this.path = parsePath(lookupName);
+        String[] path = parsePath(lookupName);
+
+        // {.command} and {.protocol.item} are taken apart right away
+        if (!hasBackticks && path[0].length() > 0 && path[0].charAt(0) == '.') {
+            this.directive = ContentDirective.parse(path[0]);
+        }
+
+        this.path = path;
     }
 
     private String[] parsePath(String deepRef)
@@ -217,12 +289,27 @@ public class SnippetTag extends SnippetPart
         return path;
     }
 
+    /**
+     * @return the parsed {.command} or {.protocol.item}, or null if this
+     * is not one (or only becomes one once backticks are resolved).
+     */
+    ContentDirective getDirective()
+    {
+        if (path == null) init();
+        return directive;
+    }
+
     public boolean hasBackticks()
     {
         return this.hasBackticks;
     }
 
     public String getDefaultValue()
+    {
+        return defaultValue;
+    }
+
+    private String resolveDefaultValue(String ifNull)
     {
         if (ifNull == null || ifNull.length() == 0) return ifNull;
 
@@ -246,6 +333,23 @@ public class SnippetTag extends SnippetPart
         return ifNull;
     }
 
+    void measure(RetainedSize size)
+    {
+        super.measure(size);
+        size.addObject(8);
+        size.addString(tag);
+        size.addStrings(path);
+        if (filters != null) {
+            size.addArray(filters);
+            // filter args are not counted
+            for (int i=0; i<filters.length; i++) size.addObject(3);
+        }
+        size.addString(defaultValue);
+        Snippet compiled = compiledDefault;
+        if (compiled != null) size.addSnippet(compiled);
+        if (directive != null) size.addObject(6);
+    }
+
     public Filter[] getFilters()
     {
         return filters;
@@ -267,7 +371,8 @@ public class SnippetTag extends SnippetPart
     = new BlockTag[]{new LoopTag(),
                      new IfTag(),
                      new LocaleTag(),
-                     new MacroTag()
+                     new MacroTag(),
+                     new CacheTag()
                     };
 
     private static final String[] BLOCK_TAG_TOKENS = extractTagTokens(BLOCK_TAGS);
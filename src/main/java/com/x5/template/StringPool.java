@@ -0,0 +1,59 @@
+package com.x5.template;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Canonical copies of strings that recur across parsed template files
+ * (tag names, path segments, origins), so that equal ones are held only
+ * once.
+ *
+ * Unlike String.intern(), a pool belongs to whatever loads the templates
+ * (eg a TemplateSet) and holds a bounded number of strings, least
+ * recently used dropped first -- so tag values parsed at render time
+ * never end up in here.
+ */
+final class StringPool
+{
+    private static final int DEFAULT_MAX_SIZE = 4096;
+
+    // access-ordered, so iteration starts at the least recently used
+    private final LinkedHashMap<String,String> strings
+        = new LinkedHashMap<String,String>(64, 0.75f, true);
+    private final int maxSize;
+
+    StringPool()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    StringPool(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the pooled string equal to s.
+     */
+    synchronized String get(String s)
+    {
+        if (s == null) return null;
+        String pooled = strings.get(s);
+        if (pooled == null) {
+            if (strings.size() >= maxSize) {
+                Iterator<String> lru = strings.keySet().iterator();
+                lru.next();
+                lru.remove();
+            }
+            // a copy, so as not to pin the template text it was cut from
+            pooled = new String(s);
+            strings.put(pooled, pooled);
+        }
+        return pooled;
+    }
+
+    synchronized int size()
+    {
+        return strings.size();
+    }
+}
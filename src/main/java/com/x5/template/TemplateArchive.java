@@ -0,0 +1,314 @@
+package com.x5.template;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TemplateArchive is a ContentSource that serves the templates of one
+ * theme layer out of a single memory-mapped archive file.
+ *
+ * Only the index (template names and where each one lives in the file)
+ * is read up front.  A template's text is decoded from the mapped file
+ * and parsed the first time it is asked for, and only a bounded number
+ * of parsed templates are kept on the heap -- the rest are decoded again
+ * from the mapping when needed, which costs no file I/O once the pages
+ * are resident.
+ *
+ * Build an archive with:
+ * <PRE>
+ * java -cp chunk-templates.jar com.x5.template.TemplateArchive \
+ *      themes/tenant1 chtml tenant1.archive
+ * </PRE>
+ * and use it as a theme layer:
+ * <PRE>
+ * Theme theme = new Theme(new TemplateArchive(new File("tenant1.archive")));
+ * </PRE>
+ */
+public class TemplateArchive implements ContentSource
+{
+    private static final long DEFAULT_MAX_CACHED_CHARS = 1024 * 1024;
+
+    // a plain ByteBuffer, since MappedByteBuffer.duplicate() is Java 17+
+    private final ByteBuffer mapped;
+    // offsets in the index are from the start of the data section
+    private final int dataStart;
+    private final String extension;
+    private final Map<String,Entry> index;
+    private final SnippetLRU parsed;
+    private final StringPool tagNames = new StringPool();
+
+    private static final class Entry
+    {
+        final String origin;
+        final int templateOffset;
+        final int templateLength;
+        // -1 when there is nothing to parse
+        final int expandedOffset;
+        final int expandedLength;
+
+        Entry(String origin, int templateOffset, int templateLength, int expandedOffset, int expandedLength)
+        {
+            this.origin = origin;
+            this.templateOffset = templateOffset;
+            this.templateLength = templateLength;
+            this.expandedOffset = expandedOffset;
+            this.expandedLength = expandedLength;
+        }
+    }
+
+    public TemplateArchive(File archive)
+    throws IOException
+    {
+        this(archive, DEFAULT_MAX_CACHED_CHARS);
+    }
+
+    /**
+     * @param maxCachedChars how much parsed template text (in chars) to
+     * keep on the heap.
+     */
+    public TemplateArchive(File archive, long maxCachedChars)
+    throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Template archive " + archive + " is over 2GB.");
+            }
+            // the mapping stays valid after the file is closed
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+
+        String what = "Template archive " + archive;
+        ByteBuffer in = mapped.duplicate();
+        if (in.remaining() < 4 || in.getInt() != TemplateFormat.ARCHIVE_MAGIC) {
+            throw new IOException(archive + " is not a template archive.");
+        }
+        int format = TemplateFormat.readInt(in, what);
+        TemplateFormat.checkVersion(format, TemplateFormat.readText(in, what), "archive");
+        this.extension = TemplateFormat.readText(in, what);
+
+        int count = TemplateFormat.readInt(in, what);
+        // each entry takes at least two lengths and four offsets
+        if (count < 0 || count > in.remaining() / 24) {
+            throw new IOException(what + " is truncated.");
+        }
+        Map<String,Entry> entries = new HashMap<String,Entry>(count * 2);
+        for (int i=0; i<count; i++) {
+            String ref = TemplateFormat.readText(in, what);
+            String origin = TemplateFormat.readText(in, what);
+            // one origin string per file
+            origin = tagNames.get(origin);
+            int templateOffset = TemplateFormat.readInt(in, what);
+            int templateLength = TemplateFormat.readInt(in, what);
+            int expandedOffset = TemplateFormat.readInt(in, what);
+            int expandedLength = TemplateFormat.readInt(in, what);
+            if (ref == null || templateOffset < 0 || templateLength < 0
+                    || (expandedOffset >= 0 && expandedLength < 0)) {
+                throw new IOException(what + " is corrupt.");
+            }
+            entries.put(ref, new Entry(origin, templateOffset, templateLength, expandedOffset, expandedLength));
+        }
+        this.dataStart = in.position();
+        long dataSize = mapped.capacity() - dataStart;
+        for (Entry entry : entries.values()) {
+            // in longs, so that garbage offsets can't wrap around
+            long end = Math.max((long)entry.templateOffset + entry.templateLength,
+                                (long)entry.expandedOffset + entry.expandedLength);
+            if (end > dataSize) {
+                throw new IOException(what + " is truncated.");
+            }
+        }
+        this.index = entries;
+        this.parsed = new SnippetLRU(maxCachedChars);
+    }
+
+    private String decode(int offset, int length)
+    {
+        // a view of our own, so concurrent readers don't share a position
+        ByteBuffer view = mapped.duplicate();
+        ((Buffer)view).position(dataStart + offset);
+        ((Buffer)view).limit(dataStart + offset + length);
+        return TemplateFormat.UTF8.decode(view).toString();
+    }
+
+    /**
+     * @return the key for a template name, same as TemplateSet uses.
+     */
+    private String refFor(String itemName)
+    {
+        String ext = extension;
+        if (itemName.charAt(0) == ';') {
+            int nextSemi = itemName.indexOf(';',1);
+            if (nextSemi > 0) {
+                ext = itemName.substring(1,nextSemi);
+                itemName = itemName.substring(nextSemi+1);
+            }
+        }
+        return ext + "." + itemName.replace('#','.');
+    }
+
+    public Snippet getSnippet(String itemName)
+    {
+        String ref = refFor(itemName);
+        Snippet snippet = parsed.get(ref);
+        if (snippet != null) return snippet;
+
+        Entry entry = index.get(ref);
+        if (entry == null || entry.expandedOffset < 0) return null;
+
+        String template = decode(entry.expandedOffset, entry.expandedLength);
+        snippet = Snippet.parseOwned(template, entry.origin, tagNames);
+        parsed.put(ref, snippet, template.length());
+        return snippet;
+    }
+
+    public String fetch(String itemName)
+    {
+        Entry entry = index.get(refFor(itemName));
+        if (entry == null) return null;
+        return decode(entry.templateOffset, entry.templateLength);
+    }
+
+    public boolean provides(String itemName)
+    {
+        Entry entry = index.get(refFor(itemName));
+        return entry != null && entry.expandedOffset >= 0;
+    }
+
+    public String getProtocol()
+    {
+        return "include";
+    }
+
+    /**
+     * @return how many templates the archive holds.
+     */
+    public int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Write an archive of every template file in a layer folder.
+     *
+     * @return the number of templates written.
+     */
+    public static int write(File layerFolder, String extension, String encoding, File archive)
+    throws IOException
+    {
+        List<TemplateBundle.Entry> entries = new ArrayList<TemplateBundle.Entry>();
+        TemplateBundle.collect(layerFolder, "", "", extension, encoding, entries);
+
+        // lay out the data section first, so the index can point into it
+        List<byte[]> data = new ArrayList<byte[]>();
+        int[][] offsets = new int[entries.size()][];
+        int cursor = 0;
+        for (int i=0; i<entries.size(); i++) {
+            TemplateBundle.Entry entry = entries.get(i);
+            byte[] template = entry.template.getBytes(TemplateFormat.UTF8.name());
+            data.add(template);
+            int[] at = new int[]{cursor, template.length, -1, -1};
+            cursor += template.length;
+            if (entry.expanded != null) {
+                byte[] expanded = entry.expanded.getBytes(TemplateFormat.UTF8.name());
+                data.add(expanded);
+                at[2] = cursor;
+                at[3] = expanded.length;
+                cursor += expanded.length;
+            }
+            offsets[i] = at;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            TemplateFormat.writeHeader(out, TemplateFormat.ARCHIVE_MAGIC);
+            TemplateFormat.writeText(out, extension);
+            out.writeInt(entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                TemplateBundle.Entry entry = entries.get(i);
+                TemplateFormat.writeText(out, entry.ref);
+                TemplateFormat.writeText(out, entry.origin);
+                for (int x : offsets[i]) {
+                    out.writeInt(x);
+                }
+            }
+            for (byte[] bytes : data) {
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        return entries.size();
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        if (args.length < 3) {
+            System.err.println("Usage: TemplateArchive <layer folder> <extension> <archive file> [encoding]");
+            System.exit(1);
+        }
+
+        String encoding = (args.length > 3) ? args[3] : TemplateDoc.getDefaultEncoding();
+        int count = write(new File(args[0]), args[1], encoding, new File(args[2]));
+        System.out.println("Archived " + count + " templates into " + args[2]);
+    }
+
+    /**
+     * Parsed templates, least recently used dropped first, bounded by
+     * the length of their text.
+     */
+    private static final class SnippetLRU
+    {
+        private final LinkedHashMap<String,Snippet> snippets
+            = new LinkedHashMap<String,Snippet>(64, 0.75f, true);
+        private final Map<String,Integer> weights = new HashMap<String,Integer>();
+        private final long maxWeight;
+        private long weight = 0;
+
+        SnippetLRU(long maxWeight)
+        {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Snippet get(String ref)
+        {
+            return snippets.get(ref);
+        }
+
+        synchronized void put(String ref, Snippet snippet, int length)
+        {
+            int entryWeight = Math.max(1, length);
+            if (entryWeight > maxWeight) return;
+
+            Integer previous = weights.put(ref, entryWeight);
+            if (previous != null) weight -= previous.intValue();
+            snippets.put(ref, snippet);
+            weight += entryWeight;
+
+            Iterator<Map.Entry<String,Snippet>> lru = snippets.entrySet().iterator();
+            while (weight > maxWeight && lru.hasNext()) {
+                String eldest = lru.next().getKey();
+                if (eldest.equals(ref)) continue;
+                weight -= weights.remove(eldest).intValue();
+                lru.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.x5.template;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TemplateBundle packs every template of a theme into one binary file,
+ * already split out of its template file, with shorthand expanded and
+ * block tags unindented.  Loading a bundle with Theme.loadBundle caches
+ * every template up front, so there are no template files to find and
+ * read on first use, and nothing is parsed mid-request.
+ *
+ * Build a bundle at build time with:
+ * <PRE>
+ * java -cp chunk-templates.jar com.x5.template.TemplateBundle \
+ *      src/main/resources/themes base,custom chtml target/classes/themes.bundle
+ * </PRE>
+ * ie the themes folder, the layer names (or "" for a theme without
+ * layers), the template file extension and where to write the bundle.
+ *
+ * Bundles record the Chunk version they were made with, and a bundle
+ * from any other version is refused -- rebuild it instead.
+ */
+public final class TemplateBundle
+{
+    static final class Entry
+    {
+        final String layer;
+        final String ref;
+        final String origin;
+        final String template;
+        final String expanded;
+
+        Entry(String layer, String ref, String origin, String template, String expanded)
+        {
+            this.layer = layer;
+            this.ref = ref;
+            this.origin = origin;
+            this.template = template;
+            this.expanded = expanded;
+        }
+    }
+
+    private TemplateBundle()
+    {
+    }
+
+    /**
+     * Same layer name however it was written: no trailing separator,
+     * forward slashes, "" for none.
+     */
+    static String layerKey(String layer)
+    {
+        if (layer == null) return "";
+        String key = layer.replace('\\','/');
+        while (key.endsWith("/")) {
+            key = key.substring(0, key.length()-1);
+        }
+        return key;
+    }
+
+    /**
+     * Parse every template file in the given layers of the themes folder
+     * and write them all out as one bundle.
+     *
+     * @param layers layer names, or null for a theme without layers.
+     * @return the number of templates written.
+     */
+    public static int write(File themesFolder, String[] layers, String extension,
+                            String encoding, OutputStream out)
+    throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (layers == null || layers.length == 0) {
+            collect(themesFolder, "", "", extension, encoding, entries);
+        } else {
+            for (String layer : layers) {
+                String key = layerKey(layer.trim());
+                collect(new File(themesFolder, key), key, "", extension, encoding, entries);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        TemplateFormat.writeHeader(data, TemplateFormat.BUNDLE_MAGIC);
+        data.writeInt(entries.size());
+        for (Entry entry : entries) {
+            TemplateFormat.writeText(data, entry.layer);
+            TemplateFormat.writeText(data, entry.ref);
+            TemplateFormat.writeText(data, entry.origin);
+            TemplateFormat.writeText(data, entry.template);
+            TemplateFormat.writeText(data, entry.expanded);
+        }
+        data.flush();
+        return entries.size();
+    }
+
+    static void collect(File folder, String layer, String path, String extension,
+                        String encoding, List<Entry> entries)
+    throws IOException
+    {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        // same bundle from the same files, whatever order the OS lists them in
+        Arrays.sort(files);
+
+        String suffix = "." + extension;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (file.isDirectory()) {
+                collect(file, layer, path + fileName + "/", extension, encoding, entries);
+            } else if (fileName.endsWith(suffix)) {
+                String stub = path + fileName.substring(0, fileName.length() - suffix.length());
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    TemplateDoc doc = new TemplateDoc(stub, in);
+                    for (TemplateDoc.Doclet doclet : doc.parseTemplates(encoding)) {
+                        String name = doclet.getName().replace('#','.');
+                        String template = doclet.getTemplate();
+                        entries.add(new Entry(layer, extension + "." + name, doclet.getOrigin(),
+                            template, TemplateSet.expandTemplate(name, template)));
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    static List<Entry> read(InputStream in)
+    throws IOException
+    {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != TemplateFormat.BUNDLE_MAGIC) {
+            throw new IOException("Not a template bundle.");
+        }
+        int format = data.readInt();
+        TemplateFormat.checkVersion(format, TemplateFormat.readText(data), "bundle");
+
+        int count = data.readInt();
+        if (count < 0) throw new IOException("Corrupt template bundle.");
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i=0; i<count; i++) {
+            String layer = TemplateFormat.readText(data);
+            String ref = TemplateFormat.readText(data);
+            String origin = TemplateFormat.readText(data);
+            String template = TemplateFormat.readText(data);
+            String expanded = TemplateFormat.readText(data);
+            entries.add(new Entry(layer, ref, origin, template, expanded));
+        }
+        return entries;
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        if (args.length < 4) {
+            System.err.println("Usage: TemplateBundle <themes folder> <layer,layer,...|\"\"> <extension> <bundle file> [encoding]");
+            System.exit(1);
+        }
+
+        String[] layers = args[1].trim().length() == 0 ? null : args[1].split(",");
+        String encoding = (args.length > 4) ? args[4] : TemplateDoc.getDefaultEncoding();
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]));
+        try {
+            int count = write(new File(args[0]), layers, args[2], encoding, out);
+            System.out.println("Bundled " + count + " templates into " + args[3]);
+        } finally {
+            out.close();
+        }
+    }
+}
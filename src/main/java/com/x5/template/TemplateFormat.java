@@ -0,0 +1,119 @@
+package com.x5.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * What TemplateBundle and TemplateArchive files have in common: a header
+ * of magic number, format version and the Chunk version that wrote the
+ * file, and text written as UTF-8 bytes after an int length (-1 for
+ * null).
+ */
+final class TemplateFormat
+{
+    static final int BUNDLE_MAGIC = 0x43484E4B; // "CHNK"
+    static final int ARCHIVE_MAGIC = 0x43484E41; // "CHNA"
+    static final int FORMAT_VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // texts longer than this are read a piece at a time, so that a
+    // garbage length runs into the end of the stream before it can
+    // allocate a huge array
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private TemplateFormat()
+    {
+    }
+
+    static void writeHeader(DataOutputStream out, int magic)
+    throws IOException
+    {
+        out.writeInt(magic);
+        out.writeInt(FORMAT_VERSION);
+        writeText(out, Chunk.VERSION);
+    }
+
+    /**
+     * @param kind "bundle" or "archive", for the error message.
+     */
+    static void checkVersion(int format, String version, String kind)
+    throws IOException
+    {
+        if (format != FORMAT_VERSION || !Chunk.VERSION.equals(version)) {
+            throw new IOException("Template " + kind + " was made by Chunk " + version
+                + ", this is Chunk " + Chunk.VERSION + " -- rebuild the " + kind + ".");
+        }
+    }
+
+    static void writeText(DataOutputStream out, String text)
+    throws IOException
+    {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // writeUTF would cap templates at 64K
+        byte[] bytes = text.getBytes(UTF8.name());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInputStream in)
+    throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0) throw new IOException("Corrupt text length " + length + ".");
+        if (length <= CHUNK_SIZE) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF8.name());
+        }
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream(CHUNK_SIZE);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int left = length;
+        while (left > 0) {
+            int n = Math.min(left, buffer.length);
+            in.readFully(buffer, 0, n);
+            text.write(buffer, 0, n);
+            left -= n;
+        }
+        return text.toString(UTF8.name());
+    }
+
+    /**
+     * @param what names the file in the error message.
+     */
+    static int readInt(ByteBuffer in, String what)
+    throws IOException
+    {
+        if (in.remaining() < 4) {
+            throw new IOException(what + " is truncated.");
+        }
+        return in.getInt();
+    }
+
+    /**
+     * @param what names the file in the error message.
+     */
+    static String readText(ByteBuffer in, String what)
+    throws IOException
+    {
+        int length = readInt(in, what);
+        if (length == -1) return null;
+        if (length < 0) {
+            throw new IOException(what + " is corrupt.");
+        }
+        if (length > in.remaining()) {
+            throw new IOException(what + " is truncated.");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8.name());
+    }
+}
@@ -3,16 +3,29 @@ package com.x5.template;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.JarURLConnection;
 import java.net.URL;
-import java.util.Hashtable;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import com.x5.template.filters.ChunkFilter;
 import com.x5.template.filters.RegexFilter;
@@ -102,10 +115,18 @@ public class TemplateSet implements ContentSource, ChunkFactory
     // performance by avoiding typical multiple parses of a
     // file for its subtemplates in a short span of code.
     private static final long MIN_CACHE = 5 * 1000;
+    // with reloadOnChange, how often to check a file for modifications
+    private static final long CHECK_INTERVAL = 1000;
 
-    private Hashtable<String,Snippet> cache = new Hashtable<String,Snippet>();
-    private Hashtable<String,Long> cacheFetch = new Hashtable<String,Long>();
+    private final ConcurrentHashMap<String,CachedTemplate> cache = new ConcurrentHashMap<String,CachedTemplate>();
+    // files being loaded right now, by extension.stub
+    private final ConcurrentHashMap<String,FutureTask<Void>> loading = new ConcurrentHashMap<String,FutureTask<Void>>();
     private int dirtyInterval = 0; // minutes
+    private volatile boolean reloadOnChange = false;
+    // bumped whenever templates are (re)loaded or dropped from the cache
+    private final AtomicInteger version = new AtomicInteger();
+    // tag names, path segments and origins shared by the templates of this set
+    private final StringPool tagNames = new StringPool();
     private String defaultExtension = null;
     private String tagStart = DEFAULT_TAG_START;
     private String tagEnd = DEFAULT_TAG_END;
@@ -210,83 +231,54 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return _get(name, extension, this.prettyFail);
     }
 
-    private void importTemplates(InputStream in, String stub, String extension)
+    private void importTemplates(InputStream in, String stub, String extension, SourceFile source)
     throws IOException
     {
         TemplateDoc doc = new TemplateDoc(stub, in);
         for (TemplateDoc.Doclet doclet : doc.parseTemplates(expectedEncoding)) {
-            cacheTemplate(doclet, extension);
+            cacheTemplate(doclet, extension, source);
         }
+        version.incrementAndGet();
     }
 
     private Snippet _get(String name, String extension, boolean prettyFail)
     {
-        Snippet template = getFromCache(name, extension);
-        String filename = null;
-
-        // if not in cache, parse file and place all pieces in cache
-        if (template == null) {
-            String stub = TemplateDoc.truncateNameToStub(name);
-
-            filename = getTemplatePath(name,extension);
-            char fs = System.getProperty("file.separator").charAt(0);
-            filename = filename.replace('\\',fs);
-            filename = filename.replace('/',fs);
-            try {
-                File templateFile = new File(filename);
-                if (templateFile.exists()) {
-                    FileInputStream in = new FileInputStream(templateFile);
-                    importTemplates(in, stub, extension);
-                    in.close();
-                    template = getFromCache(name, extension);
-                } else {
-                    // file does not exist, check around in classpath/jars
-                    String resourcePath = getResourcePath(name,extension);
-                    InputStream inJar = null;
-
-                    if (classInJar == null) {
-                        // theme resource is probably in same
-                        // vicinity as calling class.
-                        classInJar = grokCallerClass();
-                    }
-
-                    // ideally, somebody called Theme.setJarContext(this.getClass())
-                    // and we have a pointer to the jar where the templates live.
-                    if (classInJar != null) {
-                        inJar = classInJar.getResourceAsStream(resourcePath);
-                    }
+        String ref = extension + "." + name.replace('#','.');
+        CachedTemplate cached = cache.get(ref);
+        if (cached != null && !isStale(cached)) {
+            return cached.snippet;
+        }
 
-                    // last ditch effort, check in surrounding jars in classpath...
-                    if (inJar == null) inJar = fishForTemplate(resourcePath);
+        // if not in cache (or stale), parse file and place all pieces in cache
+        Snippet template = null;
+        String filename = getLocalFilename(name,extension);
+        try {
+            if (!load(name, extension, filename, cached == null)) {
+                // someone else is reloading, keep serving the old copy
+                return cached.snippet;
+            }
+            template = getFromCache(name, extension);
+        } catch (java.io.IOException e) {
+            StringBuilder errmsg = new StringBuilder("error fetching ");
+            errmsg.append(extension);
+            errmsg.append(" template '");
+            errmsg.append(name);
+            errmsg.append("'");
 
-                    if (inJar != null) {
-                        importTemplates(inJar, stub, extension);
-                        template = getFromCache(name, extension);
-                        inJar.close();
-                    }
-                }
-            } catch (java.io.IOException e) {
-                StringBuilder errmsg = new StringBuilder("error fetching ");
-                errmsg.append(extension);
-                errmsg.append(" template '");
-                errmsg.append(name);
-                errmsg.append("'");
-
-                if (hardFail) {
-                    throw new TemplateNotFoundException(errmsg.toString(), e);
-                }
+            if (hardFail) {
+                throw new TemplateNotFoundException(errmsg.toString(), e);
+            }
 
-                if (!prettyFail) return null;
+            if (!prettyFail) return null;
 
-                StringWriter w = new StringWriter();
-                e.printStackTrace(new PrintWriter(w));
-                StringBuilder trace = new StringBuilder();
-                trace.append("<!-- ");
-                trace.append(w.toString());
-                trace.append(" -->");
+            StringWriter w = new StringWriter();
+            e.printStackTrace(new PrintWriter(w));
+            StringBuilder trace = new StringBuilder();
+            trace.append("<!-- ");
+            trace.append(w.toString());
+            trace.append(" -->");
 
-                template = Snippet.getSnippet("[" + errmsg.toString() + "]" + trace.toString());
-            }
+            template = Snippet.getSnippet("[" + errmsg.toString() + "]" + trace.toString());
         }
 
         if (template == null) {
@@ -313,6 +305,212 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return template;
     }
 
+    private String getLocalFilename(String name, String extension)
+    {
+        String filename = getTemplatePath(name,extension);
+        char fs = System.getProperty("file.separator").charAt(0);
+        filename = filename.replace('\\',fs);
+        filename = filename.replace('/',fs);
+        return filename;
+    }
+
+    /**
+     * Load a template file into the cache, unless it is there already.
+     */
+    void preload(String stub)
+    throws IOException
+    {
+        // every file caches a top-level template, even an empty one
+        CachedTemplate cached = cache.get("_CLEAN_:" + defaultExtension + "." + stub);
+        if (cached != null && !isStale(cached)) return;
+        load(stub, defaultExtension, getLocalFilename(stub, defaultExtension), true);
+    }
+
+    /**
+     * Same guess at where the theme resources live as load() makes, for
+     * callers that are about to load templates on other threads, where
+     * the caller is not on the stack.
+     */
+    void grokJarContext()
+    {
+        if (classInJar == null && !new File(templatePath).isDirectory()) {
+            classInJar = grokCallerClass();
+        }
+    }
+
+    /**
+     * @return the stub of every template file in this set, from the
+     * template folder if there is one, otherwise from the classpath
+     * folder or jar.  Best effort: anything that can't be listed is
+     * left out.
+     */
+    List<String> findTemplateNames()
+    {
+        List<String> names = new ArrayList<String>();
+        String suffix = "." + defaultExtension;
+
+        File folder = new File(templatePath);
+        if (folder.isDirectory()) {
+            findTemplateFiles(folder, "", suffix, names);
+            return names;
+        }
+
+        String resourceFolder = (layerName == null) ? classpathThemesFolder : classpathThemesFolder + layerName;
+        resourceFolder = resourceFolder.replace('\\','/');
+        // jar entry names have no leading slash
+        String prefix = resourceFolder.startsWith("/") ? resourceFolder.substring(1) : resourceFolder;
+        try {
+            Class<?> context = (classInJar == null) ? TemplateSet.class : classInJar;
+            URL url = context.getResource(resourceFolder);
+            if (url == null) {
+                // jars don't always have entries for folders, try the
+                // jar we were pointed at instead
+                CodeSource code = (classInJar == null) ? null : classInJar.getProtectionDomain().getCodeSource();
+                if (code == null || code.getLocation() == null) return names;
+                File jar = new File(code.getLocation().toURI());
+                if (!jar.isFile()) return names;
+                JarFile jarFile = new JarFile(jar);
+                try {
+                    findTemplateEntries(jarFile, prefix, suffix, names);
+                } finally {
+                    jarFile.close();
+                }
+            } else if (url.getProtocol().equals("file")) {
+                findTemplateFiles(new File(url.toURI()), "", suffix, names);
+            } else if (url.getProtocol().equals("jar")) {
+                // shared with the URL cache, so not ours to close
+                JarFile jarFile = ((JarURLConnection)url.openConnection()).getJarFile();
+                findTemplateEntries(jarFile, prefix, suffix, names);
+            }
+        } catch (Exception e) {
+            // whatever was found so far is still good
+        }
+        return names;
+    }
+
+    private static void findTemplateFiles(File folder, String path, String suffix, List<String> names)
+    {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (file.isDirectory()) {
+                findTemplateFiles(file, path + fileName + "/", suffix, names);
+            } else if (fileName.endsWith(suffix)) {
+                names.add(path + fileName.substring(0, fileName.length() - suffix.length()));
+            }
+        }
+    }
+
+    private static void findTemplateEntries(JarFile jar, String prefix, String suffix, List<String> names)
+    {
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String entryName = entry.getName();
+            if (!entry.isDirectory() && entryName.startsWith(prefix) && entryName.endsWith(suffix)) {
+                names.add(entryName.substring(prefix.length(), entryName.length() - suffix.length()));
+            }
+        }
+    }
+
+    /**
+     * @return every parsed template in the cache right now.
+     */
+    List<Snippet> getCachedSnippets()
+    {
+        List<Snippet> snippets = new ArrayList<Snippet>();
+        for (Map.Entry<String,CachedTemplate> entry : cache.entrySet()) {
+            if (entry.getKey().startsWith("_CLEAN_:")) continue;
+            snippets.add(entry.getValue().snippet);
+        }
+        return snippets;
+    }
+
+    /**
+     * Parse the file holding this template into the cache.  Only one
+     * thread at a time loads any given file: the rest wait for it to
+     * finish, or if wait is false, return false right away.
+     */
+    private boolean load(final String name, final String extension, final String filename, boolean wait)
+    throws IOException
+    {
+        String fileRef = extension + "." + TemplateDoc.truncateNameToStub(name);
+        FutureTask<Void> load = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException {
+                loadFile(name, extension, filename);
+                return null;
+            }
+        });
+
+        FutureTask<Void> inFlight = loading.putIfAbsent(fileRef, load);
+        if (inFlight == null) {
+            if (classInJar == null && !new File(filename).exists()) {
+                // theme resource is probably in same vicinity as
+                // calling class, which is on this thread's stack.
+                classInJar = grokCallerClass();
+            }
+            try {
+                load.run();
+            } finally {
+                loading.remove(fileRef, load);
+            }
+            inFlight = load;
+        } else if (!wait) {
+            return false;
+        }
+
+        try {
+            inFlight.get();
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void loadFile(String name, String extension, String filename)
+    throws IOException
+    {
+        String stub = TemplateDoc.truncateNameToStub(name);
+
+        File templateFile = new File(filename);
+        if (templateFile.exists()) {
+            // note the timestamp before reading, so that a change made
+            // mid-read is picked up next time
+            SourceFile source = new SourceFile(templateFile);
+            FileInputStream in = new FileInputStream(templateFile);
+            importTemplates(in, stub, extension, source);
+            in.close();
+        } else {
+            // file does not exist, check around in classpath/jars
+            String resourcePath = getResourcePath(name,extension);
+            InputStream inJar = null;
+
+            // ideally, somebody called Theme.setJarContext(this.getClass())
+            // and we have a pointer to the jar where the templates live.
+            if (classInJar != null) {
+                inJar = classInJar.getResourceAsStream(resourcePath);
+            }
+
+            // last ditch effort, check in surrounding jars in classpath...
+            if (inJar == null) inJar = fishForTemplate(resourcePath);
+
+            if (inJar != null) {
+                importTemplates(inJar, stub, extension, null);
+                inJar.close();
+            }
+        }
+    }
+
     // default (package) visibility intentional
     static Class<?> grokCallerClass()
     {
@@ -460,20 +658,52 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return c;
     }
 
-    private void cacheTemplate(TemplateDoc.Doclet doclet, String extension)
+    private void cacheTemplate(TemplateDoc.Doclet doclet, String extension, SourceFile source)
     {
         String name = doclet.getName().replace('#','.');
-        String ref = extension + "." + name;
-        String cleanRef = "_CLEAN_:" + ref;
         String template = doclet.getTemplate();
-        cache.put(cleanRef, Snippet.makeLiteralSnippet(template));
-        cacheFetch.put(cleanRef, System.currentTimeMillis());
+        cacheTemplate(extension + "." + name, doclet.getOrigin(), template,
+            expandTemplate(name, template), System.currentTimeMillis(), source);
+    }
 
+    private void cacheTemplate(String ref, String origin, String template, String expanded,
+                               long fetched, SourceFile source)
+    {
+        cache.put("_CLEAN_:" + ref, new CachedTemplate(Snippet.makeLiteralSnippet(template), fetched, source));
+        if (expanded == null) return;
+        // one origin string per file, however often it is reloaded
+        origin = tagNames.get(origin);
+        cache.put(ref, new CachedTemplate(Snippet.parseOwned(expanded, origin, tagNames), fetched, source));
+    }
+
+    /**
+     * @return the template text as it gets parsed, ie with shorthand
+     * expanded and block tags unindented, or null if there is none.
+     */
+    static String expandTemplate(String name, String template)
+    {
         StringBuilder tpl = TemplateDoc.expandShorthand(name,new StringBuilder(template));
-        if (tpl == null) return;
-        String fastTpl = removeBlockTagIndents(tpl.toString());
-        cache.put(ref, Snippet.getSnippet(fastTpl, doclet.getOrigin()));
-        cacheFetch.put(ref, System.currentTimeMillis());
+        if (tpl == null) return null;
+        return removeBlockTagIndents(tpl.toString());
+    }
+
+    /**
+     * Cache the bundled templates that belong to this layer.  They stay
+     * cached until clearCache(), whatever the dirty interval.
+     *
+     * @return how many templates were imported.
+     */
+    int importBundle(List<TemplateBundle.Entry> entries)
+    {
+        String layer = TemplateBundle.layerKey(layerName);
+        int count = 0;
+        for (TemplateBundle.Entry entry : entries) {
+            if (!entry.layer.equals(layer)) continue;
+            cacheTemplate(entry.ref, entry.origin, entry.template, entry.expanded, CachedTemplate.PINNED, null);
+            count++;
+        }
+        if (count > 0) version.incrementAndGet();
+        return count;
     }
 
     public static String removeBlockTagIndents(String template)
@@ -481,25 +711,17 @@ public class TemplateSet implements ContentSource, ChunkFactory
         // this regex: s/^\s*({^\/?(...)[^}]*})\s*/$1/g removes leading and trailing whitespace
         // from lines that only contain {^loop} ...
         // NB: this regex will not catch {^if (~tag =~ /\/x{1,3}/)} but it's already nigh-unreadable...
-        return RegexFilter.applyRegex(template, "s/^[ \\t]*(\\{(\\% *(\\~\\.)?(end)?|(\\^|\\~\\.)\\/?)(loop|exec|if|else|elseIf|divider|onEmpty|body|data)([^\\}]*|[^\\}]*\\/[^\\/]*\\/[^\\}]*)\\})[ \\t]*$/$1/gmi");
+        return RegexFilter.applyRegex(template, "s/^[ \\t]*(\\{(\\% *(\\~\\.)?(end)?|(\\^|\\~\\.)\\/?)(loop|exec|if|else|elseIf|divider|onEmpty|body|data|cache)([^\\}]*|[^\\}]*\\/[^\\/]*\\/[^\\}]*)\\})[ \\t]*$/$1/gmi");
     }
 
     protected Snippet getFromCache(String name, String extension)
     {
         String ref = extension + "." + name.replace('#','.');
-        Snippet template = null;
-
-        long cacheHowLong = dirtyInterval * oneMinuteInMillis;
-        if (cacheHowLong < MIN_CACHE) cacheHowLong = MIN_CACHE;
-
-        if (cache.containsKey(ref)) {
-            long lastFetch = cacheFetch.get(ref); // millis
-            long expireTime = lastFetch + cacheHowLong;
-            if (System.currentTimeMillis() < expireTime) {
-                template = cache.get(ref);
-            }
+        CachedTemplate cached = cache.get(ref);
+        if (cached == null || isStale(cached)) {
+            return null;
         }
-        return template;
+        return cached.snippet;
     }
 
     /**
@@ -509,7 +731,67 @@ public class TemplateSet implements ContentSource, ChunkFactory
     public void clearCache()
     {
         cache.clear();
-        cacheFetch.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Estimate how much heap each cached template is holding on to.
+     *
+     * @return estimated bytes retained (see Snippet.getRetainedSize),
+     * keyed by extension.template.name
+     */
+    public Map<String,Long> getRetainedSizes()
+    {
+        Map<String,Long> sizes = new TreeMap<String,Long>();
+        String cleanPrefix = "_CLEAN_:";
+        for (Map.Entry<String,CachedTemplate> entry : cache.entrySet()) {
+            String ref = entry.getKey();
+            // unexpanded copies count towards their template
+            if (ref.startsWith(cleanPrefix)) ref = ref.substring(cleanPrefix.length());
+            Long sum = sizes.get(ref);
+            long size = entry.getValue().snippet.getRetainedSize();
+            sizes.put(ref, (sum == null) ? size : sum.longValue() + size);
+        }
+        return sizes;
+    }
+
+    /**
+     * @return a counter that changes every time templates are loaded or
+     * the cache is cleared, so that anything linked to a Snippet from
+     * this set knows to look it up again.
+     */
+    int getVersion()
+    {
+        return version.get();
+    }
+
+    /**
+     * @return how long (millis) a loaded template is served from the cache.
+     */
+    long getCacheDuration()
+    {
+        long cacheHowLong = dirtyInterval * oneMinuteInMillis;
+        return (cacheHowLong < MIN_CACHE) ? MIN_CACHE : cacheHowLong;
+    }
+
+    private boolean isStale(CachedTemplate cached)
+    {
+        if (!reloadOnChange) return cached.isExpired(getCacheDuration());
+        // templates from jars or the classpath never change
+        return cached.source != null && cached.source.hasChanged();
+    }
+
+    /**
+     * Instead of expiring templates after the dirty interval, keep them
+     * until their file is modified.  Each file is checked (a timestamp
+     * lookup, no re-read) at most once a second, and only the templates
+     * from files that changed are parsed again.  Templates that include
+     * a changed template pick up the new version without being reparsed
+     * themselves.
+     */
+    public void setReloadOnChange(boolean reloadOnChange)
+    {
+        this.reloadOnChange = reloadOnChange;
     }
 
     /**
@@ -649,7 +931,19 @@ public class TemplateSet implements ContentSource, ChunkFactory
 
     public boolean provides(String itemName)
     {
-        Snippet found = _get(itemName, defaultExtension, false);
+        // same ;ext; prefix as getSnippet
+        if (itemName.charAt(0) == ';') {
+            int nextSemi = itemName.indexOf(';',1);
+            if (nextSemi > 0) {
+                return provides(itemName.substring(nextSemi+1), itemName.substring(1,nextSemi));
+            }
+        }
+        return provides(itemName, defaultExtension);
+    }
+
+    public boolean provides(String itemName, String extension)
+    {
+        Snippet found = _get(itemName, extension, false);
         if (found == null) {
             return false;
         } else {
@@ -683,4 +977,51 @@ public class TemplateSet implements ContentSource, ChunkFactory
         return null;
     }
 
+    private static final class CachedTemplate
+    {
+        // fetched time of templates that never expire
+        static final long PINNED = Long.MAX_VALUE;
+
+        final Snippet snippet;
+        final long fetched; // millis
+        // file it was loaded from, or null if not from the file system
+        final SourceFile source;
+
+        CachedTemplate(Snippet snippet, long fetched, SourceFile source)
+        {
+            this.snippet = snippet;
+            this.fetched = fetched;
+            this.source = source;
+        }
+
+        boolean isExpired(long cacheHowLong)
+        {
+            if (fetched == PINNED) return false;
+            return System.currentTimeMillis() >= fetched + cacheHowLong;
+        }
+    }
+
+    private static final class SourceFile
+    {
+        final File file;
+        final long lastModified;
+        private volatile long checked;
+
+        SourceFile(File file)
+        {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.checked = System.currentTimeMillis();
+        }
+
+        boolean hasChanged()
+        {
+            long now = System.currentTimeMillis();
+            if (now - checked < CHECK_INTERVAL) return false;
+            // racing threads may both look, which is harmless
+            checked = now;
+            // zero if the file is gone
+            return file.lastModified() != lastModified;
+        }
+    }
 }
@@ -1,10 +1,19 @@
 package com.x5.template;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.x5.template.filters.ChunkFilter;
 import com.x5.util.Path;
@@ -13,6 +22,11 @@ public class Theme implements ContentSource, ChunkFactory
 {
     private ArrayList<ContentSource> themeLayers = new ArrayList<ContentSource>();
 
+    // which layer provides each template (-1 for none), so that lookups
+    // don't have to probe every layer above it each time.
+    private final ConcurrentHashMap<String,LayerRef> layerIndex = new ConcurrentHashMap<String,LayerRef>();
+    private static final int MAX_INDEX_SIZE = 4096;
+
     public static final String DEFAULT_THEMES_FOLDER = "themes";
 
     private String classpathThemesFolder;
@@ -20,11 +34,14 @@ public class Theme implements ContentSource, ChunkFactory
     private String themeLayerNames;
     private String fileExtension;
     private int cacheMins = 0;
+    private boolean reloadOnChange = false;
 
     private String localeCode = null;
     private boolean hardFailMissingTemplate = false;
     private boolean renderErrs = true;
     private PrintStream errLog = null;
+    private boolean memoizeIncludes = false;
+    private volatile int warmUpFailures = 0;
 
     public Theme()
     {
@@ -35,6 +52,7 @@ public class Theme implements ContentSource, ChunkFactory
     {
         this(config.getThemeFolder(), config.getLayerNames(), config.getDefaultExtension());
         this.setDirtyInterval(config.getCacheMinutes());
+        this.setReloadOnChange(config.reloadOnChange());
         this.localeCode = config.getLocaleCode();
         if (config.hideErrors()) {
             this.setErrorHandling(false, config.getErrorLog());
@@ -145,11 +163,13 @@ public class Theme implements ContentSource, ChunkFactory
             TemplateSet simple = new TemplateSet(classpathThemesFolder, themesFolder, fileExtension, cacheMins);
             if (!renderErrs) simple.signalFailureWithNull();
             if (hardFailMissingTemplate) simple.setHardFail(true);
+            simple.setReloadOnChange(reloadOnChange);
             themeLayers.add(simple);
         } else {
             for (int i=0; i<layerNames.length; i++) {
                 TemplateSet x = new TemplateSet(classpathThemesFolder, themesFolder + layerNames[i], fileExtension, cacheMins);
                 x.setLayerName(layerNames[i]);
+                x.setReloadOnChange(reloadOnChange);
                 // do not return pretty HTML-formatted error strings
                 // when template can not be located -- with multiple
                 // layers, a null response is required to search the
@@ -163,9 +183,176 @@ public class Theme implements ContentSource, ChunkFactory
         }
     }
 
+    /**
+     * Cache every template in a bundle made by TemplateBundle, eg from
+     * getClass().getResourceAsStream("/themes.bundle").  Bundled templates
+     * never expire, so the template files themselves don't even need to
+     * be deployed.
+     *
+     * @return how many templates were loaded.
+     * @throws IOException if the bundle can't be read or was made by
+     * another version of Chunk.
+     */
+    public int loadBundle(InputStream in)
+    throws IOException
+    {
+        List<TemplateBundle.Entry> entries = TemplateBundle.read(in);
+        int count = 0;
+        ArrayList<TemplateSet> templateSets = getTemplateSets();
+        if (templateSets != null) {
+            for (TemplateSet layer : templateSets) {
+                count += layer.importBundle(entries);
+            }
+        }
+        layerIndex.clear();
+        return count;
+    }
+
+    /**
+     * Load every template file in every layer ahead of the first request,
+     * spread over the given executor, and link the includes between the
+     * templates loaded.  Returns once it is all done.
+     *
+     * @return how many template files were loaded.  Templates that failed
+     * are counted in getWarmUpFailures().
+     */
+    public int warmUp(Executor executor)
+    throws InterruptedException
+    {
+        return warmUpLayers(executor, false);
+    }
+
+    /**
+     * Same as warmUp(executor), and with render set, also renders each
+     * template once with no tag values, so that the render path is
+     * compiled before real traffic arrives.  These renders leave the
+     * {% cache %} store and memoized includes untouched, since their
+     * output is made from empty tag values.
+     *
+     * Templates that fail to load or render are skipped, logged to the
+     * error log if one is set, and counted in getWarmUpFailures().
+     */
+    public int warmUp(Executor executor, boolean render)
+    throws InterruptedException
+    {
+        return warmUpLayers(executor, render);
+    }
+
+    /**
+     * @return how many templates failed to load, link or render in the
+     * last warmUp, 0 if there were none.
+     */
+    public int getWarmUpFailures()
+    {
+        return warmUpFailures;
+    }
+
+    private int warmUpLayers(Executor executor, final boolean render)
+    throws InterruptedException
+    {
+        ArrayList<TemplateSet> templateSets = getTemplateSets();
+        if (templateSets == null) {
+            warmUpFailures = 0;
+            return 0;
+        }
+
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        List<Runnable> loads = new ArrayList<Runnable>();
+        for (final TemplateSet layer : templateSets) {
+            // while the caller is still on this thread's stack
+            layer.grokJarContext();
+            for (final String stub : layer.findTemplateNames()) {
+                loads.add(new Runnable() {
+                    public void run() {
+                        try {
+                            layer.preload(stub);
+                            loaded.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            logWarmUpFailure(stub, e);
+                        }
+                    }
+                });
+            }
+        }
+        failed.addAndGet(runAll(executor, loads));
+
+        List<Runnable> links = new ArrayList<Runnable>();
+        for (TemplateSet layer : templateSets) {
+            for (final Snippet snippet : layer.getCachedSnippets()) {
+                links.add(new Runnable() {
+                    public void run() {
+                        try {
+                            linkIncludes(snippet);
+                            if (render) {
+                                Chunk c = makeChunk();
+                                c.setSkipSharedCaches(true);
+                                c.append(snippet);
+                                c.toString();
+                            }
+                        } catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                            logWarmUpFailure(snippet.getOrigin(), e);
+                        }
+                    }
+                });
+            }
+        }
+        failed.addAndGet(runAll(executor, links));
+
+        warmUpFailures = failed.get();
+        return loaded.get();
+    }
+
+    private void logWarmUpFailure(String templateName, Throwable e)
+    {
+        Chunk.logChunkError(errLog, "[warmUp: template '" + templateName + "' failed: " + e + "]");
+    }
+
+    private void linkIncludes(Snippet snippet)
+    {
+        List<SnippetTag> includes = new ArrayList<SnippetTag>();
+        snippet.collectIncludes(includes);
+        for (SnippetTag include : includes) {
+            ContentDirective directive = include.getDirective();
+            String templateRef = directive.getTemplateRef(snippet.getOrigin());
+            // missing templates are left to fail when they are used
+            if (findLayer(templateRef) > -1) {
+                getLinkedSnippet(directive, templateRef);
+            }
+        }
+    }
+
+    /**
+     * @return how many tasks failed with an exception they did not
+     * handle themselves.
+     */
+    private int runAll(Executor executor, List<Runnable> tasks)
+    throws InterruptedException
+    {
+        List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>(tasks.size());
+        for (Runnable task : tasks) {
+            FutureTask<Object> future = new FutureTask<Object>(task, null);
+            futures.add(future);
+            executor.execute(future);
+        }
+        int failed = 0;
+        for (FutureTask<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failed++;
+                Chunk.logChunkError(errLog, "[warmUp failed: " + e.getCause() + "]");
+            }
+        }
+        return failed;
+    }
+
     public void addLayer(ContentSource templates)
     {
         themeLayers.add(templates);
+        layerIndex.clear();
     }
 
     private ArrayList<ContentSource> getThemeLayers()
@@ -184,6 +371,20 @@ public class Theme implements ContentSource, ChunkFactory
         return themeLayerNames.split(" *, *");
     }
 
+    /**
+     * Keep templates cached until their file changes, in every layer.
+     * @see TemplateSet#setReloadOnChange(boolean)
+     */
+    public void setReloadOnChange(boolean reloadOnChange)
+    {
+        this.reloadOnChange = reloadOnChange;
+        if (this.themeLayers.size() > 0) {
+            for (TemplateSet layer : getTemplateSets()) {
+                layer.setReloadOnChange(reloadOnChange);
+            }
+        }
+    }
+
     public void setDirtyInterval(int minutes)
     {
         if (this.themeLayers.size() == 0) {
@@ -202,11 +403,10 @@ public class Theme implements ContentSource, ChunkFactory
 
     public Snippet getSnippet(String templateName, String ext)
     {
-        ArrayList<ContentSource> layers = getThemeLayers();
-        // later layers have precedence if they provide the item
-        for (int i=layers.size()-1; i>=0; i--) {
-            ContentSource x = layers.get(i);
-            Snippet template = x.getSnippet(";" + ext + ";" + templateName);
+        String itemName = ";" + ext + ";" + templateName;
+        int layer = findLayer(itemName);
+        if (layer > -1) {
+            Snippet template = getThemeLayers().get(layer).getSnippet(itemName);
             if (template != null) {
                 return template;
             }
@@ -216,29 +416,114 @@ public class Theme implements ContentSource, ChunkFactory
 
     public Snippet getSnippet(String itemName)
     {
+        int layer = findLayer(itemName);
+        if (layer > -1) {
+            return getThemeLayers().get(layer).getSnippet(itemName);
+        }
+        return prettyFail(itemName, null);
+    }
+
+    /**
+     * @return the index of the top layer that has this template, or -1.
+     * Answers (including "nowhere") are remembered until a layer loads
+     * or drops templates, or the cache interval is up.
+     */
+    private int findLayer(String itemName)
+    {
+        int version = getVersion();
+        long now = System.currentTimeMillis();
+        LayerRef ref = layerIndex.get(itemName);
+        if (ref != null && ref.version == version && now < ref.expires) {
+            return ref.layer;
+        }
+
         ArrayList<ContentSource> layers = getThemeLayers();
+        int found = -1;
         // later layers have precedence if they provide the item
         for (int i=layers.size()-1; i>=0; i--) {
             ContentSource x = layers.get(i);
             if (x.provides(itemName)) {
-                return x.getSnippet(itemName);
+                found = i;
+                break;
             }
-            /*
-            String template = x.fetch(itemName);
-            if (template != null) {
-                return template;
-            }*/
+        }
+
+        // loading the template may itself have moved the version on
+        version = getVersion();
+        if (version != -1) {
+            // keep names that are made up on the fly from piling up
+            if (layerIndex.size() >= MAX_INDEX_SIZE) layerIndex.clear();
+            layerIndex.put(itemName, new LayerRef(found, version, now + getLinkDuration()));
+        }
+        return found;
+    }
+
+    /**
+     * Same as getSnippet(itemName), for includes.  The Snippet found is
+     * linked to the directive, and later renders skip the layer walk and
+     * cache lookups altogether until a template is reloaded or the cache
+     * interval is up.  Only themes made entirely of TemplateSet and
+     * TemplateArchive layers are linked, since other sources can't say
+     * when they change.
+     */
+    Snippet getLinkedSnippet(ContentDirective directive, String itemName)
+    {
+        ContentDirective.Link link = directive.link;
+        int version = getVersion();
+        long now = System.currentTimeMillis();
+        if (link != null && link.theme == this && link.version == version
+                && now < link.expires && link.templateRef.equals(itemName)) {
+            return link.snippet;
+        }
+
+        int layer = findLayer(itemName);
+        if (layer > -1) {
+            Snippet snippet = getThemeLayers().get(layer).getSnippet(itemName);
+            if (snippet != null && version != -1) {
+                directive.link = new ContentDirective.Link(this, itemName, snippet,
+                    version, now + getLinkDuration());
+            }
+            return snippet;
         }
         return prettyFail(itemName, null);
     }
 
-    public boolean provides(String itemName)
+    /**
+     * @return the sum of the layer versions, or -1 if some layer can't
+     * tell when it changes (anything but a TemplateSet or an archive,
+     * which never changes).
+     */
+    int getVersion()
+    {
+        ArrayList<ContentSource> layers = getThemeLayers();
+        int version = 0;
+        for (int i=0; i<layers.size(); i++) {
+            ContentSource x = layers.get(i);
+            if (x instanceof TemplateSet) {
+                version += ((TemplateSet)x).getVersion();
+            } else if (!(x instanceof TemplateArchive)) {
+                return -1;
+            }
+        }
+        // stay clear of the "not linkable" marker
+        return version & Integer.MAX_VALUE;
+    }
+
+    long getLinkDuration()
     {
-        for (int i=themeLayers.size()-1; i>=0; i--) {
-            ContentSource x = themeLayers.get(i);
-            if (x.provides(itemName)) return true;
+        // archives never expire, but keep now + duration from overflowing
+        long duration = Long.MAX_VALUE / 2;
+        for (ContentSource x : getThemeLayers()) {
+            if (x instanceof TemplateSet) {
+                duration = Math.min(duration, ((TemplateSet)x).getCacheDuration());
+            }
         }
-        return false;
+        return duration;
+    }
+
+    public boolean provides(String itemName)
+    {
+        return findLayer(itemName) > -1;
     }
 
     private Snippet prettyFail(String templateName, String ext)
@@ -293,13 +578,9 @@ public class Theme implements ContentSource, ChunkFactory
 
     public String fetch(String itemName)
     {
-        ArrayList<ContentSource> layers = getThemeLayers();
-        // later layers have precedence if they provide the item
-        for (int i=layers.size()-1; i>=0; i--) {
-            ContentSource x = layers.get(i);
-            if (x.provides(itemName)) {
-                return x.fetch(itemName);
-            }
+        int layer = findLayer(itemName);
+        if (layer > -1) {
+            return getThemeLayers().get(layer).fetch(itemName);
         }
         return null;
 
@@ -330,6 +611,7 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setMemoizeIncludes(memoizeIncludes);
         return c;
     }
 
@@ -353,6 +635,7 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setMemoizeIncludes(memoizeIncludes);
         return c;
     }
 
@@ -377,9 +660,51 @@ public class Theme implements ContentSource, ChunkFactory
         shareContentSources(c);
         c.setLocale(localeCode);
         c.setErrorHandling(renderErrs, errLog);
+        c.setMemoizeIncludes(memoizeIncludes);
         return c;
     }
 
+    /**
+     * Creates a reusable data holder for rendering CompiledTemplates.  The
+     * Bindings inherit this theme's locale, filters and error handling.
+     * @return empty Bindings.
+     */
+    public Bindings makeBindings()
+    {
+        Bindings b = new Bindings();
+        b.setMacroLibrary(this, this);
+        shareContentSources(b);
+        b.setLocale(localeCode);
+        b.setErrorHandling(renderErrs, errLog);
+        return b;
+    }
+
+    /**
+     * Looks up a template and returns it in compiled form, separate from
+     * any data.  The result is immutable and safe to cache and to render
+     * from many threads at once; see CompiledTemplate.
+     *
+     * @param templateName the location of the template definition.
+     * @return the compiled template.
+     */
+    public CompiledTemplate getCompiledTemplate(String templateName)
+    {
+        return new CompiledTemplate(templateName, null, this);
+    }
+
+    /**
+     * Looks up a template with a nonstandard extension and returns it in
+     * compiled form.
+     *
+     * @param templateName the location of the template definition.
+     * @param extension the nonstandard extension which forms the template filename.
+     * @return the compiled template.
+     */
+    public CompiledTemplate getCompiledTemplate(String templateName, String extension)
+    {
+        return new CompiledTemplate(templateName, extension, this);
+    }
+
     // chunk factory now supports sharing content sources with its factory-created chunks
     private HashSet<ContentSource> altSources = null;
 
@@ -429,6 +754,27 @@ public class Theme implements ContentSource, ChunkFactory
         }
     }
 
+    /**
+     * Estimate how much heap each cached template is holding on to,
+     * summed over all layers of this theme.
+     *
+     * @return estimated bytes retained, keyed by extension.template.name
+     */
+    public Map<String,Long> getRetainedSizes()
+    {
+        Map<String,Long> sizes = new TreeMap<String,Long>();
+        ArrayList<TemplateSet> templateSets = getTemplateSets();
+        if (templateSets == null) return sizes;
+        for (TemplateSet layer : templateSets) {
+            for (Map.Entry<String,Long> entry : layer.getRetainedSizes().entrySet()) {
+                Long sum = sizes.get(entry.getKey());
+                long size = entry.getValue().longValue();
+                sizes.put(entry.getKey(), (sum == null) ? size : sum.longValue() + size);
+            }
+        }
+        return sizes;
+    }
+
     private ArrayList<TemplateSet> getTemplateSets()
     {
         ArrayList<TemplateSet> sets = null;
@@ -469,9 +815,32 @@ public class Theme implements ContentSource, ChunkFactory
         this.errLog = errLog;
     }
 
+    /**
+     * Chunks made by this theme memoize their includes.
+     * @see Chunk#setMemoizeIncludes(boolean)
+     */
+    public void setMemoizeIncludes(boolean memoizeIncludes)
+    {
+        this.memoizeIncludes = memoizeIncludes;
+    }
+
     public void setAbortOnMissingTemplate(boolean hardFail)
     {
         this.hardFailMissingTemplate = hardFail;
     }
 
+
+    private static final class LayerRef
+    {
+        final int layer;
+        final int version;
+        final long expires;
+
+        LayerRef(int layer, int version, long expires)
+        {
+            this.layer = layer;
+            this.version = version;
+            this.expires = expires;
+        }
+    }
 }
@@ -17,6 +17,7 @@ public class ThemeConfig
     public static final String LAYER_NAMES = "layers";
     public static final String DEFAULT_EXT = "default_extension";
     public static final String CACHE_MINUTES = "cache_minutes";
+    public static final String RELOAD_ON_CHANGE = "reload_on_change";
     public static final String THROW_ERRORS = "throw_errors";
     public static final String HIDE_ERRORS = "hide_errors";
     public static final String ERROR_LOG = "error_log";
@@ -32,6 +33,7 @@ public class ThemeConfig
     private String layerNames = null;
     private String defaultExtension = STANDARD_DEFAULT_EXT;
     private int cacheMinutes = 0;
+    private boolean reloadOnChange = false;
     private String locale = null;
     private String encoding = null;
     private boolean throwErrors = false;
@@ -72,6 +74,10 @@ public class ThemeConfig
             } catch (NumberFormatException e) {
                 System.err.println("Chunk Theme config error: cache_minutes must be a number.");
             }
+        } else if (configKey.equals(RELOAD_ON_CHANGE)) {
+            if (value != null && !value.equalsIgnoreCase("FALSE")) {
+                this.reloadOnChange = true;
+            }
         } else if (configKey.equals(THROW_ERRORS)) {
             if (value != null && !value.equalsIgnoreCase("FALSE")) {
                 this.throwErrors = true;
@@ -199,6 +205,11 @@ public class ThemeConfig
         return this.cacheMinutes;
     }
 
+    public boolean reloadOnChange()
+    {
+        return this.reloadOnChange;
+    }
+
     public String getLocaleCode()
     {
         return this.locale;
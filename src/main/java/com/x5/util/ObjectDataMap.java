@@ -15,6 +15,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ObjectDataMap
@@ -42,8 +43,8 @@ public class ObjectDataMap implements Map
     private static final String TRUE = "TRUE";
     private static final Class[] NO_ARGS = new Class[]{};
 
-    private static Map<Class,Field[]> declaredFields = new HashMap<Class,Field[]>();
-    private static Map<Class,Boolean> looksLikePojo = new HashMap<Class,Boolean>();
+    private static Map<Class,Field[]> declaredFields = new ConcurrentHashMap<Class,Field[]>();
+    private static Map<Class,Boolean> looksLikePojo = new ConcurrentHashMap<Class,Boolean>();
 
     private static HashSet<Class<?>> getWrapperTypes()
     {
@@ -91,7 +92,7 @@ public class ObjectDataMap implements Map
         return boxedBean;
     }
 
-    private static Map<Class,Boolean> hasOwnToString = new HashMap<Class,Boolean>();
+    private static Map<Class,Boolean> hasOwnToString = new ConcurrentHashMap<Class,Boolean>();
 
     public boolean isBean()
     {
@@ -346,7 +347,7 @@ public class ObjectDataMap implements Map
 
     }
 
-    private static Map<String,String> snakeCased = new HashMap<String,String>();
+    private static Map<String,String> snakeCased = new ConcurrentHashMap<String,String>();
 
     // splitCamelCase converts SimpleXMLStuff to simple_xml_stuff
     public static String splitCamelCase(String s)
@@ -496,7 +497,7 @@ public class ObjectDataMap implements Map
 
     private static class StandardIntrospector implements BeanIntrospector
     {
-        private static Map<Class,List<Getter>> beanGetters = new HashMap<Class,List<Getter>>();
+        private static Map<Class,List<Getter>> beanGetters = new ConcurrentHashMap<Class,List<Getter>>();
 
         public Map<String,Object> mapifyBean(Object bean)
         throws IntrospectionException
@@ -0,0 +1,142 @@
+package com.x5.template;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CacheTagTest
+{
+    @Before
+    public void clearFragments()
+    {
+        CacheTag.clearCache();
+    }
+
+    @Test
+    public void testCachedBody()
+    {
+        Chunk c = new Chunk();
+        c.append("<nav>{% cache ttl=\"1h\" %}{$menu}{% endcache %}</nav>");
+        c.set("menu", "Home");
+        assertEquals("<nav>Home</nav>", c.toString());
+
+        c.set("menu", "Away");
+        assertEquals("<nav>Home</nav>", c.toString());
+    }
+
+    @Test
+    public void testCacheKey()
+    {
+        Chunk c = new Chunk();
+        c.append("{% cache key=\"menu_$category\" %}{$category}:{$count}{% endcache %}");
+        c.set("category", "shoes");
+        c.set("count", 1);
+        assertEquals("shoes:1", c.toString());
+
+        c.set("count", 2);
+        assertEquals("shoes:1", c.toString());
+
+        c.set("category", "hats");
+        assertEquals("hats:2", c.toString());
+
+        c.set("category", "shoes");
+        assertEquals("shoes:1", c.toString());
+    }
+
+    @Test
+    public void testSurvivesReparse()
+    {
+        String template = "<nav>{% cache ttl=\"1h\" %}{$menu}{% endcache %}</nav>";
+        Snippet first = Snippet.parseOwned(template, "test#menu", new StringPool());
+        Chunk c = new Chunk();
+        c.append(first);
+        c.set("menu", "Home");
+        assertEquals("<nav>Home</nav>", c.toString());
+
+        // eg the template set reloading the file
+        Snippet reparsed = Snippet.parseOwned(template, "test#menu", new StringPool());
+        assertNotSame(first, reparsed);
+        Chunk d = new Chunk();
+        d.append(reparsed);
+        d.set("menu", "Away");
+        assertEquals("<nav>Home</nav>", d.toString());
+
+        // a block that was edited starts over
+        Snippet edited = Snippet.parseOwned(template.replace("{$menu}", "[{$menu}]"), "test#menu", new StringPool());
+        Chunk e = new Chunk();
+        e.append(edited);
+        e.set("menu", "Away");
+        assertEquals("<nav>[Away]</nav>", e.toString());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException
+    {
+        Chunk c = new Chunk();
+        c.append("{% cache ttl=\"50ms\" %}{$x}{% endcache %}");
+        c.set("x", "a");
+        assertEquals("a", c.toString());
+
+        c.set("x", "b");
+        assertEquals("a", c.toString());
+
+        Thread.sleep(100);
+        assertEquals("b", c.toString());
+    }
+
+    @Test
+    public void testDuration()
+    {
+        assertEquals(500, CacheTag.parseDuration("500ms"));
+        assertEquals(30000, CacheTag.parseDuration("30s"));
+        assertEquals(30000, CacheTag.parseDuration("30"));
+        assertEquals(300000, CacheTag.parseDuration("5m"));
+        assertEquals(3600000, CacheTag.parseDuration("1h"));
+    }
+
+    @Test
+    public void testNoStampede() throws InterruptedException
+    {
+        final AtomicInteger renders = new AtomicInteger();
+        final Chunk c = new Chunk();
+        c.append("[{% cache key=\"sidebar\" %}{$slow}{% endcache %}]");
+        c.setDeferred("slow", new Callable<String>() {
+            public String call() throws InterruptedException {
+                renders.incrementAndGet();
+                Thread.sleep(100);
+                return "sidebar";
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final String[] results = new String[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i=0; i<threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        results[n] = c.toString();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, renders.get());
+        for (String result : results) {
+            assertEquals("[sidebar]", result);
+        }
+    }
+}
@@ -914,6 +914,501 @@ public class ChunkTest
         assertEquals("Alice Bob Carol", c.toString());
     }
 
+    @Test
+    public void foldedConstantTest()
+    {
+        String template = "v{.version} = {.calc(\"3*7\")}{$x}";
+        Snippet s = Snippet.getSnippet(template);
+        assertEquals(template, s.toString());
+        assertTrue(s.getParts().get(1) instanceof SnippetConstant);
+        assertTrue(s.getParts().get(3) instanceof SnippetConstant);
+
+        Chunk c = new Chunk();
+        c.append(s);
+        c.set("x", "!");
+        assertEquals("v" + Chunk.VERSION + " = 21.0!", c.toString());
+    }
+
+    @Test
+    public void foldedConstantInBlockTest()
+    {
+        String template = "{% if $x %}v{.version}{% else %}none{% endif %}"
+            + "{% loop in $items as $i %}{$i}={.calc(\"2+2\")};{% endloop %}";
+        Snippet s = Snippet.getSnippet(template);
+        assertEquals(template, s.toString());
+        for (SnippetPart part : s.getParts()) {
+            Snippet body = ((SnippetBlockTag)part).getBody();
+            int constants = 0;
+            for (SnippetPart bodyPart : body.getParts()) {
+                if (bodyPart instanceof SnippetConstant) constants++;
+            }
+            assertEquals(1, constants);
+        }
+
+        Chunk c = new Chunk();
+        c.append(s);
+        c.set("x", "y");
+        c.set("items", new String[]{"a","b"});
+        assertEquals("v" + Chunk.VERSION + "a=4.0;b=4.0;", c.toString());
+    }
+
+    @Test
+    public void literalSpansTest()
+    {
+        String template = "<ul>\n  {!-- items --}\n  {% loop in $items as $x %}\n  <li>{$x}</li>\n  {% endloop %}\n</ul>";
+        Snippet s = Snippet.getSnippet(template);
+        for (SnippetPart part : s.getParts()) {
+            if (part.getClass() == SnippetPart.class) {
+                // literal text is a view of the template, not a copy
+                assertSame(template, part.getTextSource());
+            }
+        }
+
+        Chunk c = new Chunk();
+        c.append(s);
+        c.set("items", new String[]{"a","b"});
+        assertEquals("<ul>\n  <li>a</li>\n    <li>b</li>\n  </ul>", c.toString());
+    }
+
+    @Test
+    public void snippetCacheTest()
+    {
+        SnippetCache cache = Snippet.getCache();
+        assertNotNull(cache);
+
+        Chunk c = new Chunk();
+        c.append("<p>{$greeting}</p>");
+        c.set("greeting", "Hello {$name}");
+        c.set("name", "Bob");
+        c.toString();
+        long hits = cache.getHitCount();
+        assertEquals("<p>Hello Bob</p>", c.toString());
+        // tag value markup was not parsed again
+        assertTrue(cache.getHitCount() > hits);
+    }
+
+    @Test
+    public void boundedSnippetCacheTest()
+    {
+        // 16 segments of 10 chars each
+        SnippetCache cache = new SnippetCache(160);
+        String popular = "{$popular}";
+        cache.put(popular, null, Snippet.getSnippet(popular));
+        for (int i=0; i<5; i++) {
+            assertNotNull(cache.get(popular, null));
+        }
+        assertNull(cache.get(popular, "other_origin"));
+
+        // one-off templates do not push out one in demand
+        for (int i=0; i<200; i++) {
+            String oneOff = "{$x" + i + "}";
+            if (cache.get(oneOff, null) == null) {
+                cache.put(oneOff, null, Snippet.getSnippet(oneOff));
+            }
+        }
+        assertNotNull(cache.get(popular, null));
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+        assertTrue(cache.getRejectionCount() > 0);
+
+        // too big to ever fit
+        String big = "0123456789{$too_big}";
+        cache.put(big, null, Snippet.getSnippet(big));
+        assertNull(cache.get(big, null));
+    }
+
+    @Test
+    public void memoizeIncludesTest()
+    {
+        IncludeMemo.clear();
+
+        Chunk c = new Chunk();
+        c.setMemoizeIncludes(true);
+        c.append("<p>{$greeting}</p>");
+        c.set("greeting", "Hello {$name}{$punct:!}");
+        c.set("name", "Bob");
+        assertEquals("<p>Hello Bob!</p>", c.toString());
+        assertEquals(1, IncludeMemo.size());
+        assertEquals("<p>Hello Bob!</p>", c.toString());
+
+        // any change to a value that was read means a fresh render
+        c.set("name", "Alice");
+        assertEquals("<p>Hello Alice!</p>", c.toString());
+        c.set("punct", "?");
+        assertEquals("<p>Hello Alice?</p>", c.toString());
+        c.unset("punct");
+        c.set("name", "Bob");
+        assertEquals("<p>Hello Bob!</p>", c.toString());
+
+        // lists can't be compared, so loops are rendered every time
+        IncludeMemo.clear();
+        c.set("greeting", "{% loop in $names as $n %}{$n} {% endloop %}");
+        c.set("names", new String[]{"a","b"});
+        assertEquals("<p>a b </p>", c.toString());
+        c.set("names", new String[]{"c"});
+        assertEquals("<p>c </p>", c.toString());
+        assertEquals(0, IncludeMemo.size());
+    }
+
+    @Test
+    public void memoizeOnlyPlainReadsTest()
+    {
+        IncludeMemo.clear();
+
+        Chunk c = new Chunk();
+        c.setMemoizeIncludes(true);
+        c.append("<p>{$greeting}</p>");
+        c.set("name", "Bob");
+
+        // checking a memo must not run filters again...
+        c.set("greeting", "Hello {$name|upper}");
+        assertEquals("<p>Hello BOB</p>", c.toString());
+        assertEquals(0, IncludeMemo.size());
+
+        // ...or commands, or deferred values
+        c.set("greeting", "Hello {$name} {.calc(\"$x*2\",$k)}");
+        c.set("k", 2);
+        assertEquals("<p>Hello Bob 4.0</p>", c.toString());
+        assertEquals(0, IncludeMemo.size());
+
+        c.set("greeting", "Hello {$who}");
+        c.setDeferred("who", new java.util.concurrent.Callable<String>() {
+            public String call() { return "Alice"; }
+        });
+        assertEquals("<p>Hello Alice</p>", c.toString());
+        assertEquals(0, IncludeMemo.size());
+
+        // numbers are plain values
+        c.set("greeting", "{$n} items");
+        c.set("n", 3);
+        assertEquals("<p>3 items</p>", c.toString());
+        assertEquals(1, IncludeMemo.size());
+        c.set("n", 4);
+        assertEquals("<p>4 items</p>", c.toString());
+    }
+
+    @Test
+    public void rerenderCompiledSnippetTest()
+    {
+        Chunk c = new Chunk();
+        c.append("{!-- greeting --}Hello, {$name:$fallback}, {$title:stranger}! {$x|upper}");
+        assertEquals("Hello, {$fallback}, stranger! {$x|upper}", c.toString());
+        c.set("fallback", "friend");
+        c.set("x", "y");
+        assertEquals("Hello, friend, stranger! Y", c.toString());
+        c.set("name", "Bob");
+        c.set("title", "sir");
+        assertEquals("Hello, Bob, sir! Y", c.toString());
+    }
+
+    @Test
+    public void concurrentRenderTest()
+    throws InterruptedException
+    {
+        final Chunk layout = new Chunk();
+        layout.append("<h1>{$title}</h1>{$body}");
+        layout.set("title", "Things");
+
+        Chunk body = new Chunk();
+        body.append("{% loop in $things as $x divider=\",\" %}{$x}-{$title}{% endloop %}");
+        body.set("things", new String[]{"a","b","c"});
+        layout.set("body", body);
+
+        final String expected = "<h1>Things</h1>a-Things,b-Things,c-Things";
+        assertEquals(expected, layout.toString());
+
+        final List<String> errors = java.util.Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        for (int t=0; t<threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i=0; i<200; i++) {
+                        String output = layout.toString();
+                        if (!expected.equals(output)) errors.add(output);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.size());
+    }
+
+    @Test
+    public void renderToBytesTest()
+    throws java.io.IOException
+    {
+        Chunk c = new Chunk();
+        c.append("<p>Caf\u00e9 {$name}</p>{% loop in $xs as $x %}<i>{$x}</i>{% endloop %}\u20ac");
+        c.set("name", "\u00c5sa \ud83d\ude00");
+        c.set("xs", new String[]{"\u00fc","b"});
+
+        String[] charsets = new String[]{"UTF-8","ISO-8859-1","UTF-16","Shift_JIS"};
+        for (String charset : charsets) {
+            for (int i=0; i<3; i++) {
+                java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                c.render(out, charset);
+                assertArrayEquals(charset, c.toString().getBytes(charset), out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void pooledBufferToStringTest()
+    {
+        Chunk inner = new Chunk();
+        inner.append("[{$x}]");
+        Chunk outer = new Chunk();
+        outer.append("<{$x}>{$inner|trim}");
+        outer.set("inner", inner);
+
+        StringBuilder expected = new StringBuilder();
+        StringBuilder x = new StringBuilder();
+        for (int i=0; i<300; i++) {
+            x.append(i % 10);
+            inner.set("x", x);
+            outer.set("x", x);
+            expected.setLength(0);
+            expected.append('<').append(x).append(">[").append(x).append(']');
+            assertEquals(expected.toString(), outer.toString());
+            assertEquals("[" + x + "]", inner.toString(outer));
+        }
+    }
+
+    @Test
+    public void flushPointTest()
+    throws java.io.IOException
+    {
+        Chunk c = new Chunk();
+        c.append("<head>{$title}</head>{% flush %}<body>{.flush}{$body}</body>");
+        c.set("title", "T");
+        c.set("body", "B");
+        assertEquals("<head>T</head><body>B</body>", c.toString());
+
+        final List<String> flushed = new ArrayList<String>();
+        java.io.StringWriter out = new java.io.StringWriter() {
+            public void flush() {
+                flushed.add(toString());
+            }
+        };
+        c.stream(out, 0);
+        assertEquals("<head>T</head>", flushed.get(0));
+        assertEquals("<head>T</head><body>", flushed.get(1));
+        assertEquals("<head>T</head><body>B</body>", flushed.get(flushed.size()-1));
+    }
+
+    @Test
+    public void flushThresholdTest()
+    throws java.io.IOException
+    {
+        Chunk c = new Chunk();
+        c.append("{% loop in $xs as $x %}<li>{$x}</li>{% endloop %}");
+        c.set("xs", new String[]{"a","b","c","d","e","f","g","h"});
+
+        final int[] flushes = new int[1];
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream() {
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        c.stream(out, "UTF-8", 20);
+        assertEquals(c.toString(), out.toString("UTF-8"));
+        assertTrue(flushes[0] > 2);
+    }
+
+    @Test
+    public void deferredTagNamesTest()
+    {
+        Snippet s = Snippet.getSnippet("{$a} {.version} {% if ($n) %}{$b|upper}{% endif %} {$a}");
+        String[] names = s.getTagNames();
+        assertArrayEquals(new String[]{"a","n","b"}, names);
+        // kept with the compiled program, not worked out again per render
+        assertSame(names, s.getTagNames());
+    }
+
+    @Test
+    public void deferredValueTest()
+    throws Exception
+    {
+        final java.util.concurrent.atomic.AtomicInteger calls = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.CountDownLatch bothStarted = new java.util.concurrent.CountDownLatch(2);
+
+        Chunk c = new Chunk();
+        c.append("{$a} {$b} {$a|upper} {% if ($n) %}{$n}{% endif %} {$f}");
+        c.setDeferred("a", new java.util.concurrent.Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                bothStarted.countDown();
+                return bothStarted.await(5, java.util.concurrent.TimeUnit.SECONDS) ? "x" : "timeout";
+            }
+        });
+        c.setDeferred("b", new java.util.concurrent.Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                bothStarted.countDown();
+                return bothStarted.await(5, java.util.concurrent.TimeUnit.SECONDS) ? "y" : "timeout";
+            }
+        });
+        c.setDeferred("n", new java.util.concurrent.Callable<Integer>() {
+            public Integer call() {
+                return Integer.valueOf(7);
+            }
+        });
+        java.util.concurrent.FutureTask<String> f = new java.util.concurrent.FutureTask<String>(
+            new java.util.concurrent.Callable<String>() {
+                public String call() {
+                    return "done";
+                }
+            });
+        c.setDeferred("f", f);
+
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+        try {
+            c.setExecutor(pool);
+            new Thread(f).start();
+            java.io.StringWriter out = new java.io.StringWriter();
+            c.renderAsync(out).get(10, java.util.concurrent.TimeUnit.SECONDS);
+            assertEquals("x y X 7 done", out.toString());
+            assertEquals(2, calls.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void lazyValueTest()
+    {
+        final int[] calls = new int[2];
+
+        Chunk layout = new Chunk();
+        layout.append("{% if ($user) %}Hi {$user}!{% endif %} {$body}");
+        layout.setDeferred("user", new java.util.concurrent.Callable<String>() {
+            public String call() {
+                calls[0]++;
+                return "bob";
+            }
+        });
+        layout.setDeferred("unused", new java.util.concurrent.Callable<String>() {
+            public String call() {
+                calls[1]++;
+                return "never";
+            }
+        });
+
+        Chunk body = new Chunk();
+        body.append("{% loop in $xs as $x %}{$x}:{$user|upper} {% endloop %}");
+        body.set("xs", new String[]{"a","b","c"});
+        layout.set("body", body);
+
+        assertEquals("Hi bob! a:BOB b:BOB c:BOB ", layout.toString());
+        assertEquals(1, calls[0]);
+        assertEquals(0, calls[1]);
+
+        // once per render, not once per chunk
+        layout.toString();
+        assertEquals(2, calls[0]);
+        assertEquals(0, calls[1]);
+    }
+
+    public static class CallableBean implements java.util.concurrent.Callable<String>
+    {
+        public String getName()
+        {
+            return "bean";
+        }
+
+        public String call()
+        {
+            return "called";
+        }
+    }
+
+    @Test
+    public void callableBeanTest()
+    {
+        // only setDeferred values are called, a bean is still a bean
+        Chunk c = new Chunk();
+        c.append("{$x.name}");
+        c.set("x", new CallableBean());
+        assertEquals("bean", c.toString());
+    }
+
+    @Test
+    public void parallelRenderTest()
+    throws Exception
+    {
+        Chunk layout = new Chunk();
+        layout.append("<h1>{$title}</h1>{$body}");
+        layout.set("title", "Things");
+
+        Chunk body = new Chunk();
+        body.append("{% loop in $xs as $x %}<i>{$x}-{$title}</i>{% endloop %}|");
+        body.append("{% if ($title) %}{$title|upper}{% else %}none{% endif %}|");
+        body.append("{% loop in $xs as $x divider=\",\" %}{$x}{% endloop %}");
+        body.set("xs", new String[]{"a","b","c"});
+        layout.set("body", body);
+
+        String expected = layout.toString();
+        assertEquals("<h1>Things</h1><i>a-Things</i><i>b-Things</i><i>c-Things</i>|THINGS|a,b,c", expected);
+
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+        try {
+            body.setExecutor(pool);
+            body.setRenderInParallel(true);
+            for (int i=0; i<50; i++) {
+                assertEquals(expected, layout.toString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelDeferredTest()
+    throws Exception
+    {
+        final java.util.concurrent.atomic.AtomicInteger calls = new java.util.concurrent.atomic.AtomicInteger();
+
+        Chunk layout = new Chunk();
+        layout.append("{% if ($a) %}{$body}{% endif %}|{% if ($b) %}{$body}{% endif %}");
+        layout.set("a", "1");
+        layout.set("b", "1");
+        layout.setDeferred("user", new java.util.concurrent.Callable<String>() {
+            public String call() throws InterruptedException {
+                calls.incrementAndGet();
+                Thread.sleep(20);
+                return "bob";
+            }
+        });
+
+        // both sections reach the value through a child chunk, at once
+        Chunk body = new Chunk();
+        body.append("{$user}");
+        layout.set("body", body);
+
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+        try {
+            layout.setExecutor(pool);
+            layout.setRenderInParallel(true);
+            for (int i=1; i<=10; i++) {
+                assertEquals("bob|bob", layout.toString());
+                assertEquals(i, calls.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = java.io.UnsupportedEncodingException.class)
+    public void renderToBytesBadCharsetTest()
+    throws java.io.IOException
+    {
+        Chunk c = new Chunk();
+        c.append("x");
+        c.render(new java.io.ByteArrayOutputStream(), "no-such-charset");
+    }
+
     /**
      * for addData test
      */
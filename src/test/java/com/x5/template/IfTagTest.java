@@ -541,4 +541,42 @@ public class IfTagTest
         assertEquals("EMPTY EMPTY FULL EMPTY", c.toString());
     }
 
+    @Test
+    public void testLongElseIfChain()
+    {
+        Chunk c = new Chunk();
+        c.append("{% if $page == home %}HOME");
+        String[] pages = new String[]{"about","blog","contact","faq","about","shop"};
+        for (int i=0; i<pages.length; i++) {
+            c.append("{% elseIf $page == \"" + pages[i] + "\" %}" + pages[i].toUpperCase() + i);
+        }
+        c.append("{% elseIf $page =~ /^s/ %}S-PAGE{% else %}OTHER{% endif %}");
+
+        c.set("page", "home");
+        assertEquals("HOME", c.toString());
+        c.set("page", "faq");
+        assertEquals("FAQ3", c.toString());
+        // first matching arm wins
+        c.set("page", "about");
+        assertEquals("ABOUT0", c.toString());
+        c.set("page", "shop");
+        assertEquals("SHOP5", c.toString());
+        c.set("page", "search");
+        assertEquals("S-PAGE", c.toString());
+        c.unset("page");
+        assertEquals("OTHER", c.toString());
+    }
+
+    @Test
+    public void testConstantBranches()
+    {
+        Chunk c = new Chunk();
+        c.set("x", "a");
+        c.append("{% if false %}NEVER{% elseIf $x == b %}B{% elseIf true %}ALWAYS{% elseIf $x == a %}A{% else %}ELSE{% endif %}");
+        assertEquals("ALWAYS", c.toString());
+
+        c.set("x", "b");
+        assertEquals("B", c.toString());
+    }
+
 }
@@ -172,6 +172,29 @@ public class MacroTest
         assertEquals("a = 2.  x = 3.", c.toString());
     }
 
+    @Test
+    public void staticInlineBodyIsPrerenderedTest()
+    {
+        String template = "<p>{^exec}{~a=2}{~x=3}{^body}a = {~a}.  x = {~x}.{/exec}</p>";
+        Snippet s = Snippet.getSnippet(template);
+
+        assertEquals(template, s.toString());
+        assertEquals(3, s.getParts().size());
+        assertTrue(s.getParts().get(1) instanceof SnippetConstant);
+
+        Chunk c = new Chunk();
+        c.append(s);
+        assertEquals("<p>a = 2.  x = 3.</p>", c.toString());
+
+        // data from the context can't be pre-rendered
+        Snippet dynamic = Snippet.getSnippet("{^exec}{~a=2}{^body}a = {~a}, b = {~b}.{/exec}");
+        assertTrue(dynamic.getParts().get(0) instanceof SnippetBlockTag);
+        c = new Chunk();
+        c.append(dynamic);
+        c.set("b", "4");
+        assertEquals("a = 2, b = 4.", c.toString());
+    }
+
     @Test
     public void inlineBodyWithEndTagTest()
     {
@@ -1,9 +1,23 @@
 package com.x5.template;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.x5.template.filters.BasicFilter;
+import com.x5.template.filters.FilterArgs;
 import com.x5.template.providers.TemplateProvider;
 
 public class ThemeTest
@@ -58,6 +72,421 @@ public class ThemeTest
         assertEquals("order.chunk\n", chunk.toString());
     }
 
+    @Test
+    public void testCompiledTemplate()
+    {
+        Theme theme = new Theme("test/base,test/override");
+        CompiledTemplate macro = theme.getCompiledTemplate("macro_test#simple_test");
+
+        Bindings data = theme.makeBindings();
+        data.set("host_name", "Bob");
+        assertEquals("Once I ate a burrito and drank some sangria at Bob's house and I had awful indigestion afterwards.",
+            macro.render(data).trim());
+
+        data.reset().set("host_name", "Alice");
+        assertEquals("Once I ate a burrito and drank some sangria at Alice's house and I had awful indigestion afterwards.",
+            macro.render(data).trim());
+
+        // template is left alone for re-use
+        assertTrue(macro.toString().contains("{$host_name}"));
+    }
+
+    @Test
+    public void testCompiledTemplateReload() throws IOException, InterruptedException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "compiled_test.chtml");
+        writeFile(file, "{#greeting}Hello {$name}{#}");
+
+        Theme theme = new Theme(dir.getPath(), null);
+        theme.setReloadOnChange(true);
+        CompiledTemplate greeting = theme.getCompiledTemplate("compiled_test#greeting");
+        Bindings data = theme.makeBindings();
+        data.set("name", "Bob");
+        assertEquals("Hello Bob", greeting.render(data));
+
+        writeFile(file, "{#greeting}Goodbye {$name}{#}");
+        file.setLastModified(file.lastModified() + 2000);
+        Thread.sleep(1100);
+        // anyone else using the template picks up the new version...
+        assertEquals("Goodbye {$name}", theme.makeChunk("compiled_test#greeting").toString());
+        // ...and so does the compiled template
+        assertEquals("Goodbye Bob", greeting.render(data));
+
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testLinkedIncludeAcrossThemes()
+    {
+        Theme base = new Theme("test/base");
+        Theme layered = new Theme("test/base,test/override");
+
+        // one parsed template, so both themes share the include tag
+        Snippet page = Snippet.getSnippet("{+layer_test#snippet}|{+layer_test#only_in_base}");
+        Chunk a = base.makeChunk();
+        a.append(page);
+        Chunk b = layered.makeChunk();
+        b.append(page);
+
+        for (int i=0; i<3; i++) {
+            assertEquals("Base Snippet\n|Only in Base\n", a.toString());
+            assertEquals("Override Snippet\n|Only in Base\n", b.toString());
+        }
+    }
+
+    @Test
+    public void testRetainedSizes()
+    {
+        Theme theme = new Theme("test/base,test/override");
+        String template = theme.getSnippet("layer_test").toString();
+
+        Map<String,Long> sizes = theme.getRetainedSizes();
+        Long size = sizes.get("chtml.layer_test");
+        assertNotNull(size);
+        assertTrue(size.longValue() > template.length());
+
+        Snippet small = Snippet.getSnippet("{$a}");
+        Snippet large = Snippet.getSnippet("{$a} {% if $b %}{$c|upper}{% endif %} and some more text");
+        assertTrue(small.getRetainedSize() < large.getRetainedSize());
+    }
+
+    @Test
+    public void testSharedTagNames() throws IOException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "names_test.chtml");
+        writeFile(file, "{#a}Hi {$user.name}{#}\n{#b}Bye {$user.name}!{#}\n");
+
+        TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+        long misses = Snippet.getCache().getMissCount();
+        SnippetTag a = (SnippetTag)templates.getSnippet("names_test#a").getParts().get(1);
+        SnippetTag b = (SnippetTag)templates.getSnippet("names_test#b").getParts().get(1);
+        // equal names from template files are held once per set
+        assertSame(a.getTag(), b.getTag());
+        assertSame(a.getPath()[0], b.getPath()[0]);
+        assertSame(a.getPath()[1], b.getPath()[1]);
+        // and so is the origin of the file
+        String origin = templates.getSnippet("names_test#a").getOrigin();
+        assertNotNull(origin);
+        assertSame(origin, templates.getSnippet("names_test#b").getOrigin());
+        // and the templates themselves stay out of the shared snippet cache
+        assertEquals(misses, Snippet.getCache().getMissCount());
+
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testConcurrentLoad() throws InterruptedException
+    {
+        final TemplateSet templates = new TemplateSet("/themes", "themes/test/base", "chtml", 0);
+        templates.setLayerName("test/base");
+        // loads happen on threads with no caller outside the library on
+        // the stack, so say where the templates are
+        templates.setJarContext(ThemeTest.class);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Snippet[] results = new Snippet[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i=0; i<threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        results[n] = templates.getSnippet("chunk_test#looptest_counter");
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        // the file was parsed just the once, and everyone got the same copy
+        assertEquals(1, templates.getVersion());
+        for (Snippet result : results) {
+            assertSame(results[0], result);
+        }
+    }
+
+    @Test
+    public void testReloadOnChange() throws IOException, InterruptedException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "reload_test.chtml");
+        writeFile(file, "{#greeting}Hello{#}");
+
+        TemplateSet templates = new TemplateSet(dir.getPath(), "chtml", 0);
+        templates.setReloadOnChange(true);
+        Snippet before = templates.getSnippet("reload_test#greeting");
+        assertEquals("Hello", before.toString());
+
+        Thread.sleep(1100);
+        // untouched file, same template
+        assertSame(before, templates.getSnippet("reload_test#greeting"));
+
+        writeFile(file, "{#greeting}Goodbye{#}");
+        file.setLastModified(file.lastModified() + 2000);
+        Thread.sleep(1100);
+        assertEquals("Goodbye", templates.getSnippet("reload_test#greeting").toString());
+
+        file.delete();
+        dir.delete();
+    }
+
+    private static void writeFile(File file, String text) throws IOException
+    {
+        FileWriter out = new FileWriter(file);
+        out.write(text);
+        out.close();
+    }
+
+    @Test
+    public void testLayerIndex()
+    {
+        final int[] probes = new int[1];
+        TemplateSet base = new TemplateSet("/themes", "themes/test/base", "chtml", 0);
+        base.setLayerName("test/base");
+        TemplateSet override = new TemplateSet("/themes", "themes/test/override", "chtml", 0) {
+            public boolean provides(String itemName) {
+                probes[0]++;
+                return super.provides(itemName);
+            }
+        };
+        override.setLayerName("test/override");
+        Theme theme = new Theme(base);
+        theme.addLayer(override);
+
+        // only in the base layer
+        assertTrue(theme.getSnippet("alternator").toString().length() > 0);
+        assertTrue(theme.getSnippet("alternator").toString().length() > 0);
+        assertEquals(1, probes[0]);
+
+        // misses are remembered too
+        assertFalse(theme.provides("no_such_template"));
+        assertFalse(theme.provides("no_such_template"));
+        assertEquals(2, probes[0]);
+
+        // the override layer still wins where it has the template
+        assertEquals("Override Snippet", theme.getSnippet("layer_test#snippet").toString().trim());
+    }
+
+    @Test
+    public void testBundle() throws IOException
+    {
+        File themes = new File(getClass().getResource("/themes").getPath());
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        int count = TemplateBundle.write(themes, new String[]{"test/base","test/override"}, "chtml", "UTF-8", bundle);
+        assertTrue(count > 0);
+
+        // a theme that can't find any template files by itself
+        ThemeConfig config = new ThemeConfig();
+        config.set(ThemeConfig.THEME_PATH, "no_such_folder");
+        config.set(ThemeConfig.THEME_RESOURCE_PATH, "/no_such_folder");
+        config.set(ThemeConfig.LAYER_NAMES, "test/base,test/override");
+        Theme theme = new Theme(config);
+        assertFalse(theme.provides("layer_test#snippet"));
+
+        assertEquals(count, theme.loadBundle(new ByteArrayInputStream(bundle.toByteArray())));
+        assertEquals("Override Snippet", theme.getSnippet("layer_test#snippet").toString().trim());
+        assertEquals("Only in Base", theme.getSnippet("layer_test#only_in_base").toString().trim());
+
+        Chunk c = theme.makeChunk("macro_test#simple_test");
+        c.set("host_name", "Bob");
+        assertTrue(c.toString().contains("at Bob's house"));
+    }
+
+    @Test
+    public void testWarmUp() throws InterruptedException
+    {
+        Theme theme = new Theme("test/base,test/override");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            // six .chtml files in base, four in override
+            assertEquals(10, theme.warmUp(pool, true));
+        } finally {
+            pool.shutdown();
+        }
+
+        // loaded without ever being asked for
+        Map<String,Long> sizes = theme.getRetainedSizes();
+        assertTrue(sizes.containsKey("chtml.loop_test"));
+        assertTrue(sizes.containsKey("chtml.BUG29_MACRO"));
+        assertEquals("Override Snippet", theme.getSnippet("layer_test#snippet").toString().trim());
+    }
+
+    @Test
+    public void testWarmUpCountsFailures() throws IOException, InterruptedException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File good = new File(dir, "good.chtml");
+        writeFile(good, "Hello {$name:there}\n");
+        File bad = new File(dir, "bad.chtml");
+        writeFile(bad, "Hello {~name:there|boom}\n");
+
+        Theme theme = new Theme(dir.getPath(), null);
+        theme.registerFilter(new BasicFilter() {
+            public String transformText(Chunk chunk, String text, FilterArgs args)
+            {
+                // Filter.apply catches Exceptions from custom filters
+                throw new LinkageError("boom");
+            }
+            public String getFilterName()
+            {
+                return "boom";
+            }
+        });
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        theme.setErrorHandling(true, new PrintStream(log, true));
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals(2, theme.warmUp(pool, true));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, theme.getWarmUpFailures());
+        assertTrue(log.toString().contains("boom"));
+
+        good.delete();
+        bad.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testWarmUpLeavesCachesAlone() throws IOException, InterruptedException
+    {
+        File dir = File.createTempFile("chunk", "themes");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "warm_test.chtml");
+        writeFile(file, "<aside>{% cache ttl=\"10m\" %}Hi {$user:guest}, {$count} items{% endcache %}</aside>\n"
+            + "{#page}[{% include #greeting %}]{#}\n"
+            + "{#greeting}Hello {$user:guest}{#}\n");
+
+        CacheTag.clearCache();
+        IncludeMemo.clear();
+        Theme theme = new Theme(dir.getPath(), null);
+        theme.setMemoizeIncludes(true);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals(1, theme.warmUp(pool, true));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, IncludeMemo.size());
+
+        Chunk c = theme.makeChunk("warm_test");
+        c.set("user", "Bob");
+        c.set("count", 3);
+        assertEquals("<aside>Hi Bob, 3 items</aside>", c.toString().trim());
+
+        Chunk page = theme.makeChunk("warm_test#page");
+        page.set("user", "Bob");
+        assertEquals("[Hello Bob]", page.toString());
+
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testArchive() throws IOException
+    {
+        File base = new File(getClass().getResource("/themes/test/base").getPath());
+        File file = File.createTempFile("chunk", ".archive");
+        int count = TemplateArchive.write(base, "chtml", "UTF-8", file);
+
+        TemplateArchive archive = new TemplateArchive(file);
+        assertEquals(count, archive.size());
+        assertTrue(archive.provides("layer_test#only_in_base"));
+        assertFalse(archive.provides("no_such_template"));
+        assertNull(archive.getSnippet("no_such_template"));
+
+        // parsed for the archive alone, the shared snippet cache is left out of it
+        long misses = Snippet.getCache().getMissCount();
+        assertEquals("Only in Base", archive.getSnippet("layer_test#only_in_base").toString().trim());
+        assertEquals(misses, Snippet.getCache().getMissCount());
+
+        Theme theme = new Theme(archive);
+        assertEquals("Only in Base", theme.getSnippet("layer_test#only_in_base").toString().trim());
+        assertSame(theme.getSnippet("layer_test#snippet"), theme.getSnippet("layer_test#snippet"));
+
+        Chunk c = theme.makeChunk("macro_test#simple_test");
+        c.set("host_name", "Bob");
+        assertTrue(c.toString().contains("at Bob's house"));
+
+        // an archive never changes, so lookups through it can be linked
+        assertTrue(theme.getVersion() > -1);
+
+        file.delete();
+    }
+
+    @Test
+    public void testTruncatedArchive() throws IOException
+    {
+        File base = new File(getClass().getResource("/themes/test/base").getPath());
+        File file = File.createTempFile("chunk", ".archive");
+        TemplateArchive.write(base, "chtml", "UTF-8", file);
+        byte[] whole = new byte[(int)file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        in.readFully(whole);
+        in.close();
+
+        // cut off in the header, the index and the data
+        int[] cuts = {0, 2, 6, 11, 40, whole.length / 2, whole.length - 1};
+        File cut = File.createTempFile("chunk", ".archive");
+        for (int length : cuts) {
+            FileOutputStream out = new FileOutputStream(cut);
+            out.write(whole, 0, length);
+            out.close();
+            try {
+                new TemplateArchive(cut);
+                fail("archive cut off at " + length + " bytes was accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        // a garbage length for the version text
+        byte[] garbled = whole.clone();
+        garbled[8] = (byte)0x7f;
+        FileOutputStream out = new FileOutputStream(cut);
+        out.write(garbled);
+        out.close();
+        try {
+            new TemplateArchive(cut);
+            fail("archive with a garbage length was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        cut.delete();
+        file.delete();
+    }
+
+    @Test
+    public void testOtherExtensionsLayered()
+    {
+        Theme theme = new Theme("test/base,test/override");
+
+        // override has no .txt file, and must not answer with an error snippet
+        assertEquals("Main snippet.\n\n", theme.makeChunk("text_file", "txt").toString());
+        assertTrue(theme.provides(";txt;text_file"));
+        assertFalse(theme.provides(";txt;no_such_file"));
+    }
+
     @Test
     public void testOtherExtensions()
     {